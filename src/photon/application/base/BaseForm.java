@@ -65,6 +65,7 @@ public class BaseForm {
     protected int zoom = 0;
 
     private PhotonCalcWorker calcWorker;
+    private PhotonLoadWorker loadWorker;
 
     protected void openFile() {
         FileDialog d = new FileDialog(me.frame);
@@ -79,24 +80,27 @@ public class BaseForm {
         if (fileName != null && fileName.length() > 0) {
             File file = new File(fileName);
             if (MainUtils.isPhotonFile(file)) {
-                if (calcWorker!=null) {
-                    if (!calcWorker.isDone()) {
-                        calcWorker.cancel(true);
-                    }
-                    calcWorker = null;
-                }
-
+                // The workers check for cancellation between layers, interrupting them would close the open file channel
+                // and the file is only unlinked when they have stopped
                 me.saveBtn.setEnabled(false);
                 me.informationBtn.setEnabled(false);
                 me.tabPreviewLarge.setEnabled(false);
                 me.tabPreviewSmall.setEnabled(false);
                 try {
+                    if (loadWorker!=null) {
+                        loadWorker.cancelAndWait();
+                        loadWorker = null;
+                    }
+                    if (calcWorker!=null) {
+                        calcWorker.cancelAndWait();
+                        calcWorker = null;
+                    }
                     if (photonFile != null) {
                         photonFile.unLink();
                     }
                     setFileName(file);
 
-                    PhotonLoadWorker loadWorker = new PhotonLoadWorker(me, file);
+                    loadWorker = new PhotonLoadWorker(me, file);
                     loadWorker.execute();
 
                 } catch (Exception ex) {
@@ -29,11 +29,7 @@ import photon.application.render.elements.Segment;
 import photon.application.render.elements.Vertex;
 import photon.file.parts.PhotonFileLayer;
 import photon.file.parts.PhotonLayer;
-import photon.file.parts.PhotonLine;
-import photon.file.parts.PhotonRow;
-
-import java.awt.*;
-import java.util.ArrayList;
+import photon.file.parts.PhotonLayerRuns;
 
 /**
  * by bn on 18/07/2018.
@@ -45,24 +41,13 @@ public class ResinLayer extends RenderAsSegment {
         double x1 = -1 * (width/2);
         double y1 = -1 * (height/2);
 
-        int black = Color.black.getRGB();
-        int red = Color.decode("#FF0000").getRGB();
-
-        ArrayList<PhotonRow> rows = fileLayer.getRows();
-        if (rows != null) {
-            int columnNumber = 0;
-            for (PhotonRow row : rows) {
-                int i = 0;
-                for (PhotonLine line : row.lines) {
-                    int end = i + line.length;
-                    if (line.color.getRGB() != black) {
-                        if (type== PhotonLayer.OFF || (type==PhotonLayer.SUPPORTED && line.color.getRGB() != red) || (type==PhotonLayer.ISLAND && line.color.getRGB() == red)) {
-                            iTransformables.add(new Segment(new Vertex(x1 + columnNumber, y1 + i, z), new Vertex(x1 + columnNumber, y1 + end, z)));
-                        }
-                    }
-                    i = end;
+        PhotonLayerRuns runs = fileLayer.getLayerRuns(null);
+        for (int columnNumber = 0; columnNumber < runs.getHeight(); columnNumber++) {
+            for (int run = runs.getRowStart(columnNumber); run < runs.getRowStart(columnNumber + 1); run++) {
+                byte runType = runs.getType(run);
+                if (type== PhotonLayer.OFF || (type==PhotonLayer.SUPPORTED && runType != PhotonLayer.ISLAND) || (type==PhotonLayer.ISLAND && runType == PhotonLayer.ISLAND)) {
+                    iTransformables.add(new Segment(new Vertex(x1 + columnNumber, y1 + runs.getStart(run), z), new Vertex(x1 + columnNumber, y1 + runs.getEnd(run), z)));
                 }
-                columnNumber++;
             }
         }
 
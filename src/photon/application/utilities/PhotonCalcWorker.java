@@ -38,6 +38,9 @@ import java.io.File;
 public class PhotonCalcWorker extends SwingWorker<Integer, String> implements IPhotonProgress {
     private MainForm mainForm;
     private File file;
+    // Set while doInBackground runs, guarded by the lock
+    private final Object lock = new Object();
+    private boolean running;
 
     public PhotonCalcWorker(MainForm mainForm) {
         this.mainForm = mainForm;
@@ -54,19 +57,52 @@ public class PhotonCalcWorker extends SwingWorker<Integer, String> implements IP
     @Override
     protected void done() {
         mainForm.openBtn.setEnabled(true);
-        if (mainForm.photonFile!=null) {
+        if (mainForm.photonFile!=null && !isCancelled()) {
             mainForm.showFileInformation();
         }
     }
 
     @Override
     protected Integer doInBackground() throws Exception {
+        synchronized (lock) {
+            if (isCancelled()) {
+                return 0;
+            }
+            running = true;
+        }
+        try {
+            return work();
+        } finally {
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cancel the worker and wait until it no longer uses the photon file, the worker checks for cancellation between
+     * layers.
+     */
+    public void cancelAndWait() throws InterruptedException {
+        cancel(false);
+        synchronized (lock) {
+            while (running) {
+                lock.wait();
+            }
+        }
+    }
+
+    private Integer work() {
         publish("Calculating layers...");
         try {
             mainForm.photonFile.setMargin(mainForm.margin);
             mainForm.photonFile.calculate(this);
             publish("Calculation Complete...");
         } catch (Exception e) {
+            if (isCancelled()) {
+                return 0;
+            }
             mainForm.marginInfo.setForeground(Color.red);
             mainForm.marginInfo.setText("Could not calculate the file.");
             return 0;
@@ -38,6 +38,9 @@ import java.io.File;
 public class PhotonLoadWorker extends SwingWorker<Integer, String> implements IPhotonProgress {
     private MainForm mainForm;
     private File file;
+    // Set while doInBackground runs, guarded by the lock
+    private final Object lock = new Object();
+    private boolean running;
 
     public PhotonLoadWorker(MainForm mainForm, File file) {
         this.mainForm = mainForm;
@@ -72,7 +75,7 @@ public class PhotonLoadWorker extends SwingWorker<Integer, String> implements IP
     @Override
     protected void done() {
         // mainForm.openBtn.setEnabled(true);
-        if (mainForm.photonFile!=null) {
+        if (mainForm.photonFile!=null && !isCancelled()) {
             mainForm.openBtn.setEnabled(true);
             mainForm.saveBtn.setEnabled(true);
             mainForm.informationBtn.setEnabled(true);
@@ -89,6 +92,36 @@ public class PhotonLoadWorker extends SwingWorker<Integer, String> implements IP
 
     @Override
     protected Integer doInBackground() throws Exception {
+        synchronized (lock) {
+            if (isCancelled()) {
+                return 0;
+            }
+            running = true;
+        }
+        try {
+            return work();
+        } finally {
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cancel the worker and wait until it no longer uses the photon file, the worker checks for cancellation between
+     * layers.
+     */
+    public void cancelAndWait() throws InterruptedException {
+        cancel(false);
+        synchronized (lock) {
+            while (running) {
+                lock.wait();
+            }
+        }
+    }
+
+    private Integer work() {
         publish("Loading file...");
         try {
             mainForm.photonFile = new PhotonFile();
@@ -96,6 +129,9 @@ public class PhotonLoadWorker extends SwingWorker<Integer, String> implements IP
             mainForm.photonFile.readFile(file, this);
             publish("Complete...");
         } catch (Exception e) {
+            if (isCancelled()) {
+                return 0;
+            }
             mainForm.photonFile = null;
             mainForm.marginInfo.setForeground(Color.red);
             mainForm.marginInfo.setText("Could not read the file, file is corrupted or in an unsupported format.");
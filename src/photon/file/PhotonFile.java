@@ -28,13 +28,30 @@ import photon.application.utilities.PhotonCalcWorker;
 import photon.file.parts.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 /**
  * by bn on 30/06/2018.
  */
 public class PhotonFile {
+    private static final long MAX_BINARY_FILE_SIZE = Integer.MAX_VALUE - 8;
+    private static final long MAX_PHOTON_FILE_SIZE = 0xFFFFFFFFL; // layer data addresses are unsigned 32 bit
+
     private PhotonFileHeader photonFileHeader;
     private PhotonFilePrintParameters photonFilePrintParameters;
     private PhotonFilePreview previewOne;
@@ -48,12 +65,50 @@ public class PhotonFile {
     private int margin;
     private ArrayList<Integer> marginLayers;
 
+    private boolean memoryMapped;
+    private boolean lazyLoading;
+    private boolean deduplicateLayers;
+    private boolean runLengthEngine;
+    private long layerCacheSize = 256L * 1024 * 1024;
+    private long coldCacheSize;
+    private IPhotonFileSource source;
+    private File sourceFile;
+    private long sourceModified;
+    private PhotonLayerCache layerCache;
+    private IPhotonLayerStore layerStore;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Read only the header and print parameters of a file, for listing files without loading them.
+     */
+    public static PhotonFileInfo probe(Path path) throws Exception {
+        try (IPhotonFileSource source = new PhotonChannelSource(path.toFile())) {
+            PhotonFileHeader photonFileHeader = new PhotonFileHeader(source);
+            PhotonFilePrintParameters photonFilePrintParameters = null;
+            if (photonFileHeader.getVersion() > 1) {
+                photonFilePrintParameters = new PhotonFilePrintParameters(photonFileHeader.getPrintParametersOffsetAddress(), source);
+            }
+            return new PhotonFileInfo(photonFileHeader, photonFilePrintParameters);
+        }
+    }
+
     public PhotonFile readFile(File file) throws Exception {
-        return readFile(getBinaryData(file));
+        return readFile(file, new DummyPhotonLoadProgress());
     }
 
     public PhotonFile readFile(File file, IPhotonProgress iPhotonProgress) throws Exception {
-        return readFile(getBinaryData(file), iPhotonProgress);
+        long modified = file.lastModified();
+        if (memoryMapped || file.length() > MAX_BINARY_FILE_SIZE) {
+            // Large files are too big for a single array, use mapped segments of the file instead
+            readFile(new PhotonMappedSource(file), iPhotonProgress);
+        } else if (lazyLoading || layerStore != null) {
+            readFile(new PhotonChannelSource(file), iPhotonProgress);
+        } else {
+            readFile(getBinaryData(file), iPhotonProgress);
+        }
+        sourceFile = file;
+        sourceModified = modified;
+        return this;
     }
 
     public PhotonFile readFile(byte[] file) throws Exception {
@@ -61,37 +116,135 @@ public class PhotonFile {
     }
 
     public PhotonFile readFile(byte[] file, IPhotonProgress iPhotonProgress) throws Exception {
+        return readFile(ByteBuffer.wrap(file), iPhotonProgress);
+    }
+
+    /**
+     * Read the file from a buffer, the layers and previews keeps read only views into the buffer instead of copies.
+     */
+    public PhotonFile readFile(ByteBuffer file, IPhotonProgress iPhotonProgress) throws Exception {
+        return readFile(new PhotonBufferSource(file), iPhotonProgress);
+    }
+
+    private PhotonFile readFile(IPhotonFileSource source, IPhotonProgress iPhotonProgress) throws Exception {
+        this.source = source;
+        this.sourceFile = null;
+        layerCache = lazyLoading || coldCacheSize > 0 ? new PhotonLayerCache(layerCacheSize, coldCacheSize) : null;
+
         iPhotonProgress.showInfo("Reading photon file header information...");
-        photonFileHeader = new PhotonFileHeader(file);
+        photonFileHeader = new PhotonFileHeader(source);
         iPhotonProgress.showInfo("Reading photon large preview image information...");
-        previewOne = new PhotonFilePreview(photonFileHeader.getPreviewOneOffsetAddress(), file);
+        previewOne = new PhotonFilePreview(photonFileHeader.getPreviewOneOffsetAddress(), source);
         iPhotonProgress.showInfo("Reading photon small preview image information...");
-        previewTwo = new PhotonFilePreview(photonFileHeader.getPreviewTwoOffsetAddress(), file);
+        previewTwo = new PhotonFilePreview(photonFileHeader.getPreviewTwoOffsetAddress(), source);
         if (photonFileHeader.getVersion() > 1) {
             iPhotonProgress.showInfo("Reading Print parameters information...");
-            photonFilePrintParameters = new PhotonFilePrintParameters(photonFileHeader.getPrintParametersOffsetAddress(), file);
+            photonFilePrintParameters = new PhotonFilePrintParameters(photonFileHeader.getPrintParametersOffsetAddress(), source);
         }
         iPhotonProgress.showInfo("Reading photon layers information...");
-        layers = PhotonFileLayer.readLayers(photonFileHeader, file, margin, iPhotonProgress);
+        layers = PhotonFileLayer.readLayers(photonFileHeader, source, layerCache, layerStore, parallelism, margin, iPhotonProgress);
         resetMarginAndIslandInfo();
 
         return this;
     }
 
+    /**
+     * Save the file by streaming it to a temporary file next to it, which replaces the file when completely written,
+     * so a failed save never leaves a truncated file behind. The temporary file gets the permissions of the file it
+     * replaces.
+     * <p/>
+     * Some platforms, like Windows, can not replace a file that is open. Saving over the file this was read from
+     * lazily or memory mapped then fails and leaves the file as it was.
+     */
     public void saveFile(File file) throws Exception {
-        FileOutputStream fileOutputStream = new FileOutputStream(file);
-        writeFile(fileOutputStream);
-        fileOutputStream.flush();
-        fileOutputStream.close();
+        if (patchFile(file)) {
+            return;
+        }
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFile(new PhotonOutputStream(channel));
+                channel.force(true);
+            }
+            copyAttributes(target, temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (FileSystemException e) {
+                if (source != null && sourceFile != null && Files.isSameFile(sourceFile.toPath(), target)) {
+                    throw new IOException("The file is open for loading and can not be replaced, save it as another file", e);
+                }
+                throw e;
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        syncDirectory(target.getParent());
+    }
+
+    /**
+     * Stream the file to the output stream, without building it in memory first.
+     */
+    public void saveFile(OutputStream outputStream) throws Exception {
+        writeFile(new PhotonOutputStream(outputStream));
     }
 
     public byte[] saveFile() throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        writeFile(baos);
+        saveFile(baos);
         return baos.toByteArray();
     }
 
-    private void writeFile(OutputStream outputStream) throws Exception {
+    /**
+     * Give the temporary file the permissions of the file it replaces, or the usual permissions of a new file.
+     */
+    private static void copyAttributes(Path target, Path temp) throws IOException {
+        PosixFileAttributeView posixView = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (posixView != null) {
+            if (Files.exists(target)) {
+                PosixFileAttributes attributes = Files.readAttributes(target, PosixFileAttributes.class);
+                posixView.setPermissions(attributes.permissions());
+                try {
+                    posixView.setGroup(attributes.group());
+                } catch (IOException e) {
+                    // Only a member of the group can set it, the file then keeps the group of the directory
+                }
+            } else {
+                posixView.setPermissions(PosixFilePermissions.fromString("rw-r--r--"));
+            }
+        } else if (Files.exists(target)) {
+            DosFileAttributeView dosView = Files.getFileAttributeView(temp, DosFileAttributeView.class);
+            if (dosView != null) {
+                DosFileAttributes attributes = Files.readAttributes(target, DosFileAttributes.class);
+                dosView.setHidden(attributes.isHidden());
+                dosView.setArchive(attributes.isArchive());
+                dosView.setSystem(attributes.isSystem());
+            }
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        // Makes the rename durable, not all platforms can open a directory so this is best effort
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Only the settings changed, patch the header, print parameters and layer definitions in the file it was read from.
+     * This is only done when the file is laid out exactly as writeFile would write it, so the result is the same. With
+     * deduplication the layers are laid out differently, so the file is always written anew.
+     */
+    private boolean patchFile(File file) throws Exception {
+        if (deduplicateLayers || source == null || sourceFile == null || !file.exists() || !Files.isSameFile(sourceFile.toPath(), file.toPath())
+                || file.lastModified() != sourceModified || file.length() != source.size()) {
+            return false;
+        }
+
         int antiAliasLevel = 1;
         if (photonFileHeader.getVersion() > 1) {
             antiAliasLevel = photonFileHeader.getAntiAliasingLevel();
@@ -108,30 +261,64 @@ public class PhotonFile {
             layerDefinitionPos = parametersPos + photonFilePrintParameters.getByteSize();
         }
 
-        int dataPosition = layerDefinitionPos + (PhotonFileLayer.getByteSize() * photonFileHeader.getNumberOfLayers() * antiAliasLevel);
-
-
-        PhotonOutputStream os = new PhotonOutputStream(outputStream);
-
-        photonFileHeader.save(os, previewOnePos, previewTwoPos, layerDefinitionPos, parametersPos);
-        previewOne.save(os, previewOnePos);
-        previewTwo.save(os, previewTwoPos);
-
-        if (photonFileHeader.getVersion() > 1) {
-            photonFilePrintParameters.save(os);
+        if (photonFileHeader.getPreviewOneOffsetAddress() != previewOnePos || !previewOne.isStoredAt(previewOnePos)
+                || photonFileHeader.getPreviewTwoOffsetAddress() != previewTwoPos || !previewTwo.isStoredAt(previewTwoPos)
+                || photonFileHeader.getPrintParametersOffsetAddress() != parametersPos
+                || photonFileHeader.getLayersDefinitionOffsetAddress() != layerDefinitionPos) {
+            return false;
         }
 
-        // Optimize order for speed read on photon
+        long dataPosition = layerDefinitionPos + ((long) PhotonFileLayer.getByteSize() * photonFileHeader.getNumberOfLayers() * antiAliasLevel);
         for (int i = 0; i < photonFileHeader.getNumberOfLayers(); i++) {
             PhotonFileLayer layer = layers.get(i);
+            if (layer.getAntiAlias().size() != antiAliasLevel - 1 || !layer.isStoredAt(source, dataPosition)) {
+                return false;
+            }
             dataPosition = layer.savePos(dataPosition);
-            if (antiAliasLevel > 1) {
-                for (int a = 0; a < (antiAliasLevel - 1); a++) {
-                    dataPosition = layer.getAntiAlias(a).savePos(dataPosition);
+            for (int a = 0; a < (antiAliasLevel - 1); a++) {
+                if (!layer.getAntiAlias(a).isStoredAt(source, dataPosition)) {
+                    return false;
+                }
+                dataPosition = layer.getAntiAlias(a).savePos(dataPosition);
+            }
+        }
+        if (dataPosition != source.size()) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            PhotonOutputStream os = new PhotonOutputStream(channel);
+            photonFileHeader.save(os, previewOnePos, previewTwoPos, layerDefinitionPos, parametersPos);
+            os.flush();
+            if (photonFileHeader.getVersion() > 1) {
+                channel.position(parametersPos);
+                photonFilePrintParameters.save(os);
+                os.flush();
+            }
+            channel.position(layerDefinitionPos);
+            writeLayerDefinitions(os, antiAliasLevel);
+            os.flush();
+            channel.force(true);
+        }
+        sourceModified = file.lastModified();
+        return true;
+    }
+
+    private long savePos(PhotonFileLayer layer, long dataPosition, HashMap<Long, List<PhotonFileLayer>> savedData) throws Exception {
+        if (savedData != null) {
+            List<PhotonFileLayer> candidates = savedData.computeIfAbsent(layer.getDataHash(), hash -> new ArrayList<>());
+            for (PhotonFileLayer candidate : candidates) {
+                if (layer.hasSameData(candidate)) {
+                    layer.shareData(candidate);
+                    return dataPosition;
                 }
             }
+            candidates.add(layer);
         }
+        return layer.savePos(dataPosition);
+    }
 
+    private void writeLayerDefinitions(PhotonOutputStream os, int antiAliasLevel) throws Exception {
         // Order for backward compatibility with photon/cbddlp version 1
         for (int i = 0; i < photonFileHeader.getNumberOfLayers(); i++) {
             layers.get(i).save(os);
@@ -144,6 +331,53 @@ public class PhotonFile {
                 }
             }
         }
+    }
+
+    private void writeFile(PhotonOutputStream os) throws Exception {
+        PhotonFileLayer.encodeLayers(layers, parallelism);
+
+        int antiAliasLevel = 1;
+        if (photonFileHeader.getVersion() > 1) {
+            antiAliasLevel = photonFileHeader.getAntiAliasingLevel();
+        }
+
+        int headerPos = 0;
+        int previewOnePos = headerPos + photonFileHeader.getByteSize();
+        int previewTwoPos = previewOnePos + previewOne.getByteSize();
+        int layerDefinitionPos = previewTwoPos + previewTwo.getByteSize();
+
+        int parametersPos = 0;
+        if (photonFileHeader.getVersion() > 1) {
+            parametersPos = layerDefinitionPos;
+            layerDefinitionPos = parametersPos + photonFilePrintParameters.getByteSize();
+        }
+
+        long dataPosition = layerDefinitionPos + ((long) PhotonFileLayer.getByteSize() * photonFileHeader.getNumberOfLayers() * antiAliasLevel);
+
+        photonFileHeader.save(os, previewOnePos, previewTwoPos, layerDefinitionPos, parametersPos);
+        previewOne.save(os, previewOnePos);
+        previewTwo.save(os, previewTwoPos);
+
+        if (photonFileHeader.getVersion() > 1) {
+            photonFilePrintParameters.save(os);
+        }
+
+        // Optimize order for speed read on photon
+        HashMap<Long, List<PhotonFileLayer>> savedData = deduplicateLayers ? new HashMap<>() : null;
+        for (int i = 0; i < photonFileHeader.getNumberOfLayers(); i++) {
+            PhotonFileLayer layer = layers.get(i);
+            dataPosition = savePos(layer, dataPosition, savedData);
+            if (antiAliasLevel > 1) {
+                for (int a = 0; a < (antiAliasLevel - 1); a++) {
+                    dataPosition = savePos(layer.getAntiAlias(a), dataPosition, savedData);
+                }
+            }
+        }
+        if (dataPosition > MAX_PHOTON_FILE_SIZE) {
+            throw new IOException("The layer data is too large for the photon file format (max 4 GB)");
+        }
+
+        writeLayerDefinitions(os, antiAliasLevel);
 
         // Optimize order for speed read on photon
         for (int i = 0; i < photonFileHeader.getNumberOfLayers(); i++) {
@@ -155,6 +389,7 @@ public class PhotonFile {
                 }
             }
         }
+        os.flush();
     }
 
 
@@ -213,6 +448,73 @@ public class PhotonFile {
         this.margin = margin;
     }
 
+    /**
+     * Load files through a read only memory mapping, so layer and preview data is paged in from the file instead of copied to the heap.
+     * The file must not be overwritten while it is loaded.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Only read the header, print parameters and layer definitions when loading. The layer image data is read when a layer is used,
+     * and the heap used by layer data is limited by the layer cache size. The file is kept open, and must not be overwritten while it is loaded.
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+
+    public void setLayerCacheSize(long layerCacheSize) {
+        this.layerCacheSize = layerCacheSize;
+    }
+
+    /**
+     * Keep the layers evicted from the layer cache compressed, up to the cold cache size, instead of calculating them again
+     * when they are used. The layer cache is used without lazy loading as well, and the layers are read when they are used.
+     */
+    public void setColdCacheSize(long coldCacheSize) {
+        this.coldCacheSize = coldCacheSize;
+    }
+
+    public PhotonLayerCache getLayerCache() {
+        return layerCache;
+    }
+
+    /**
+     * Keep the layer image data and the calculated layer images in a layer store instead of on the heap, like a
+     * PhotonDirectStore or a PhotonSpillStore. Files are read one layer at a time into the store, so the file is kept
+     * open while it is loaded. The store is closed when the file is unlinked.
+     */
+    public void setLayerStore(IPhotonLayerStore layerStore) {
+        this.layerStore = layerStore;
+    }
+
+    public IPhotonLayerStore getLayerStore() {
+        return layerStore;
+    }
+
+    /**
+     * Write identical layer image data only once when saving, all layers with the same data point at the same address.
+     */
+    public void setDeduplicateLayers(boolean deduplicateLayers) {
+        this.deduplicateLayers = deduplicateLayers;
+    }
+
+    /**
+     * Calculate the layers on runs of pixels instead of pixels, which is much faster for mostly empty layers.
+     */
+    public void setRunLengthEngine(boolean runLengthEngine) {
+        this.runLengthEngine = runLengthEngine;
+    }
+
+    /**
+     * Set the number of threads used to read, calculate and process layers, 1 processes the layers in order on the
+     * calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
     public ArrayList<Integer> getMarginLayers() {
         if (marginLayers == null) {
             return new ArrayList<>();
@@ -315,6 +617,25 @@ public class PhotonFile {
         return photonFileHeader;
     }
 
+    /**
+     * A digest of the image data of all layers and AA layers in layer order, derived from the layer hashes.
+     */
+    public long getLayersHash() {
+        int count = 0;
+        for (PhotonFileLayer layer : layers) {
+            count += 1 + layer.getAntiAlias().size();
+        }
+        long[] hashes = new long[count];
+        int i = 0;
+        for (PhotonFileLayer layer : layers) {
+            hashes[i++] = layer.getDataHash();
+            for (PhotonFileLayer aaLayer : layer.getAntiAlias()) {
+                hashes[i++] = aaLayer.getDataHash();
+            }
+        }
+        return PhotonHash.hash(hashes);
+    }
+
     public PhotonFilePreview getPreviewOne() {
         return previewOne;
     }
@@ -341,6 +662,24 @@ public class PhotonFile {
         previewOne = null;
         previewTwo.unLink();
         previewTwo = null;
+        if (layerCache != null) {
+            layerCache.clear();
+            layerCache = null;
+        }
+        try {
+            source.close();
+        } catch (IOException e) {
+            // ignore, the file is not used anymore
+        }
+        source = null;
+        if (layerStore != null) {
+            try {
+                layerStore.close();
+            } catch (IOException e) {
+                // ignore, the data is not used anymore
+            }
+            layerStore = null;
+        }
         System.gc();
     }
 
@@ -358,28 +697,29 @@ public class PhotonFile {
     }
 
     public void fixLayers(IPhotonProgress progres) throws Exception {
-        PhotonLayer layer = null;
-        for (int layerNo : islandLayers) {
-            progres.showInfo("Checking layer " + layerNo);
-
-            // Unpack the layer data to the layer utility class
-            PhotonFileLayer fileLayer = layers.get(layerNo);
-            if (layer == null) {
-                layer = fileLayer.getLayer();
-            } else {
+        PhotonLayer layer = PhotonLayer.acquire(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+        try {
+            for (int layerNo : islandLayers) {
+                PhotonProgressTracker.checkCancelled(progres);
+                progres.showInfo("Checking layer " + layerNo);
+
+                // Unpack the layer data to the layer utility class
+                PhotonFileLayer fileLayer = layers.get(layerNo);
                 fileLayer.getUpdateLayer(layer);
-            }
 
-            int changed = fixit(progres, layer, fileLayer, 10);
-            if (changed == 0) {
-                progres.showInfo(", but nothing could be done.");
-            } else {
-                fileLayer.saveLayer(layer);
-                calculate(layerNo);
-            }
+                int changed = fixit(progres, layer, fileLayer, 10);
+                if (changed == 0) {
+                    progres.showInfo(", but nothing could be done.");
+                } else {
+                    fileLayer.saveLayer(layer);
+                    calculate(layerNo);
+                }
 
-            progres.showInfo("<br>");
+                progres.showInfo("<br>");
 
+            }
+        } finally {
+            PhotonLayer.release(layer);
         }
         findIslands();
     }
@@ -402,12 +742,22 @@ public class PhotonFile {
     }
 
     public void calculate(IPhotonProgress progres) throws Exception {
-        PhotonFileLayer.calculateLayers(photonFileHeader, layers, margin, progres);
-        resetMarginAndIslandInfo();
+        calculate(0, layers.size(), progres);
     }
 
+    /**
+     * Calculate one layer again after it has been changed, with the same engine as the other layers.
+     */
     public void calculate(int layerNo) throws Exception {
-        PhotonFileLayer.calculateLayers(photonFileHeader, layers, margin, layerNo);
+        calculate(layerNo, layerNo + 1, new DummyPhotonLoadProgress());
+    }
+
+    private void calculate(int from, int to, IPhotonProgress progres) throws Exception {
+        if (runLengthEngine) {
+            PhotonFileLayer.calculateLayerRuns(photonFileHeader, layers, margin, from, to, parallelism, progres);
+        } else {
+            PhotonFileLayer.calculateLayers(photonFileHeader, layers, margin, from, to, parallelism, progres);
+        }
         resetMarginAndIslandInfo();
     }
 
@@ -24,11 +24,35 @@
 
 package photon.file.parts;
 
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
- * by bn on 10/07/2018.
+ * Keeps layer data outside of the Java heap, the layers only hold a handle to their data.
  */
-public class PhotonRow {
-    public ArrayList<PhotonLine> lines = new ArrayList<>();
+public interface IPhotonLayerStore extends Closeable {
+    long NONE = -1;
+
+    /**
+     * Copy the remaining bytes of the data into the store.
+     *
+     * @return The handle to get the data with
+     */
+    long put(ByteBuffer data) throws IOException;
+
+    /**
+     * Get a read only view of the stored data, positioned at zero.
+     */
+    ByteBuffer get(long handle);
+
+    /**
+     * Free the stored data, the handle and the views of the data must not be used after this.
+     */
+    void remove(long handle);
+
+    /**
+     * The number of bytes stored.
+     */
+    long getSize();
 }
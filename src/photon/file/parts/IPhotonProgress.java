@@ -29,4 +29,18 @@ package photon.file.parts;
  */
 public interface IPhotonProgress {
     void showInfo(String str);
+
+    /**
+     * Show how far a phase has come, called through a PhotonProgressTracker so it is rate limited.
+     */
+    default void showProgress(String phase, int current, int total) {
+        showInfo(phase + " " + current + "/" + total);
+    }
+
+    /**
+     * Long running loops check this and stop with a CancellationException when it returns true.
+     */
+    default boolean isCancelled() {
+        return false;
+    }
 }
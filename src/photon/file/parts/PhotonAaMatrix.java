@@ -24,6 +24,8 @@
 
 package photon.file.parts;
 
+import java.awt.Rectangle;
+
 public class PhotonAaMatrix {
 
     public Integer[][] aaMatrix = new Integer[5][5];
@@ -45,52 +47,104 @@ public class PhotonAaMatrix {
         int[][] target = null;
 
         if (source!=null) {
+            // The rows are shared, the source is filtered in place
             target = source.clone();
+            if (source.length > 0 && source[0].length > 0) {
+                calc(target, 0, 0, source[0].length - 1, source.length - 1);
+            }
+        }
+        return target;
+    }
 
-            int divisor = 0;
-            for (int y = 0; y < 5; y++) {
-                int rowDivistor = 0;
-                for (int x = 0; x < 5; x++) {
-                    rowDivistor += aaMatrix[y][x];
-                }
-                hasDivisor[y] = (rowDivistor>0);
-                divisor += rowDivistor;
+    /**
+     * Filter the image in place with the matrix, row by row from the top left, so the pixels read above and to the left
+     * are already filtered. Only the pixels that can be other than 0 are filtered, starting with the pixels from x1, y1 to
+     * x2, y2 and following the filtered values as they spread right and down. All other pixels must be 0, so a box
+     * around the lit pixels and 2 pixels more gives the same result as filtering the whole image.
+     *
+     * @return The part of the image that was filtered
+     */
+    public Rectangle calc(int[][] image, int x1, int y1, int x2, int y2) {
+        int[][] matrix = new int[5][5];
+        int divisor = 0;
+        for (int y = 0; y < 5; y++) {
+            int rowDivistor = 0;
+            for (int x = 0; x < 5; x++) {
+                matrix[y][x] = aaMatrix[y][x];
+                rowDivistor += matrix[y][x];
             }
+            hasDivisor[y] = (rowDivistor>0);
+            divisor += rowDivistor;
+        }
+
+        if (divisor == 0) {
+            return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+        }
 
-            if (divisor >0) {
-                int height = source.length;
-                if (height > 0) {
-                    int width = source[0].length;
-                    if (width > 0) {
-                        int sum;;
-                        int dy;
-                        int dx;
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                sum = 0;
-                                for (int cy = -2; cy <= 2; cy++) {
-                                    if (hasDivisor[2+cy])
-                                        for (int cx = -2; cx <= 2; cx++) {
-                                            dy = y+cy;
-                                            dx = x+cx;
-                                            if (dy>=0 && dy< height) {
-                                                if (dx>=0 && dx< width) {
-                                                    sum += source[dy][dx] * aaMatrix[2+cy][2+cx];
-                                                } else {
-                                                    sum += source[y][x] * aaMatrix[2+cy][2+cx];
-                                                }
-                                            } else {
-                                                sum += source[y][x] * aaMatrix[2+cy][2+cx];
-                                            }
-                                        }
+        int height = image.length;
+        int width = image[0].length;
+        int sum;
+        int dy;
+        int dx;
+        // The columns that are not 0 in the two rows above
+        int first1 = width;
+        int last1 = -1;
+        int first2 = width;
+        int last2 = -1;
+        int areaFirst = width;
+        int areaLast = -1;
+        int y = y1;
+        for (; y < height; y++) {
+            int first = y <= y2 ? x1 : width;
+            int last = y <= y2 ? x2 : -1;
+            if (first1 <= last1) {
+                first = Integer.min(first, first1 - 2);
+                last = Integer.max(last, last1 + 2);
+            }
+            if (first2 <= last2) {
+                first = Integer.min(first, first2 - 2);
+                last = Integer.max(last, last2 + 2);
+            }
+            if (first > last) {
+                break;
+            }
+            first = Integer.max(0, first);
+            int rowFirst = width;
+            int rowLast = -1;
+            int x = first;
+            for (; x <= last && x < width; x++) {
+                sum = 0;
+                for (int cy = -2; cy <= 2; cy++) {
+                    if (hasDivisor[2+cy])
+                        for (int cx = -2; cx <= 2; cx++) {
+                            dy = y+cy;
+                            dx = x+cx;
+                            if (dy>=0 && dy< height) {
+                                if (dx>=0 && dx< width) {
+                                    sum += image[dy][dx] * matrix[2+cy][2+cx];
+                                } else {
+                                    sum += image[y][x] * matrix[2+cy][2+cx];
                                 }
-                                target[y][x] = sum / divisor;
+                            } else {
+                                sum += image[y][x] * matrix[2+cy][2+cx];
                             }
                         }
-                    }
+                }
+                image[y][x] = sum / divisor;
+                if (image[y][x] != 0) {
+                    rowFirst = Integer.min(rowFirst, x);
+                    rowLast = x;
+                    // The next 2 pixels of the row read this one
+                    last = Integer.max(last, x + 2);
                 }
             }
+            areaFirst = Integer.min(areaFirst, first);
+            areaLast = Integer.max(areaLast, x - 1);
+            first2 = first1;
+            last2 = last1;
+            first1 = rowFirst;
+            last1 = rowLast;
         }
-        return target;
+        return new Rectangle(areaFirst, y1, areaLast - areaFirst + 1, y - y1);
     }
 }
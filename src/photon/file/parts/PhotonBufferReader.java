@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads little endian values directly from a heap or memory mapped buffer, either at an absolute address or in sequence.
+ */
+public class PhotonBufferReader {
+    private ByteBuffer buffer;
+    private int position;
+
+    public PhotonBufferReader(ByteBuffer buffer) {
+        this(buffer, 0);
+    }
+
+    public PhotonBufferReader(ByteBuffer buffer, int position) {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.position = position;
+    }
+
+    public int getInt(int address) {
+        return buffer.getInt(address);
+    }
+
+    public float getFloat(int address) {
+        return buffer.getFloat(address);
+    }
+
+    public short getShort(int address) {
+        return buffer.getShort(address);
+    }
+
+    public byte getByte(int address) {
+        return buffer.get(address);
+    }
+
+    public int readInt() {
+        int value = buffer.getInt(position);
+        position += 4;
+        return value;
+    }
+
+    public float readFloat() {
+        float value = buffer.getFloat(position);
+        position += 4;
+        return value;
+    }
+
+    public short readShort() {
+        short value = buffer.getShort(position);
+        position += 2;
+        return value;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int size() {
+        return buffer.limit();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A file source backed by a heap or memory mapped buffer, reads are views into the buffer.
+ */
+public class PhotonBufferSource implements IPhotonFileSource {
+    private ByteBuffer buffer;
+
+    public PhotonBufferSource(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public long size() {
+        return buffer.limit();
+    }
+
+    @Override
+    public ByteBuffer read(long address, int length) throws IOException {
+        if (address + length > buffer.limit()) {
+            throw new IOException("Could not read all bytes of the file");
+        }
+        return slice(buffer, (int) address, length);
+    }
+
+    /**
+     * Get a read only view of part of a buffer, without copying the data.
+     */
+    public static ByteBuffer slice(ByteBuffer buffer, int address, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(address);
+        slice.limit(address + length);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A layer store that allocates the data in large chunks, each stored data starts with its length.
+ * <p/>
+ * The data is added to the current chunk until it is full. A chunk is used again when all the data in it is removed,
+ * which happens as the layers are calculated again. Data larger than a chunk gets a chunk of its own.
+ */
+public abstract class PhotonChunkStore implements IPhotonLayerStore {
+    private static final int CHUNK_SIZE = 16 << 20;
+
+    private ArrayList<ByteBuffer> chunks = new ArrayList<>();
+    private int[] used = new int[16];
+    private ArrayDeque<Integer> freeChunks = new ArrayDeque<>();
+    private int current = -1;
+    private int position;
+    private long size;
+
+    /**
+     * Allocate a new chunk outside of the heap.
+     */
+    protected abstract ByteBuffer allocate(int chunkSize) throws IOException;
+
+    @Override
+    public synchronized long put(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        int dataSize = 4 + length;
+        int chunkNo;
+        int offset = 0;
+        if (dataSize > CHUNK_SIZE) {
+            chunkNo = addChunk(allocate(dataSize));
+        } else {
+            if (current < 0 || position + dataSize > CHUNK_SIZE) {
+                if (current >= 0 && used[current] == 0) {
+                    freeChunks.add(current);
+                }
+                current = freeChunks.isEmpty() ? addChunk(allocate(CHUNK_SIZE)) : freeChunks.poll();
+                position = 0;
+            }
+            chunkNo = current;
+            offset = position;
+            position += dataSize;
+        }
+        ByteBuffer chunk = chunks.get(chunkNo).duplicate();
+        chunk.putInt(offset, length);
+        chunk.position(offset + 4);
+        chunk.put(data.duplicate());
+        used[chunkNo] += dataSize;
+        size += length;
+        return ((long) chunkNo << 32) | offset;
+    }
+
+    @Override
+    public synchronized ByteBuffer get(long handle) {
+        ByteBuffer chunk = chunks.get((int) (handle >>> 32));
+        int offset = (int) handle;
+        return PhotonBufferSource.slice(chunk, offset + 4, chunk.getInt(offset));
+    }
+
+    @Override
+    public synchronized void remove(long handle) {
+        int chunkNo = (int) (handle >>> 32);
+        ByteBuffer chunk = chunks.get(chunkNo);
+        int length = chunk.getInt((int) handle);
+        used[chunkNo] -= 4 + length;
+        size -= length;
+        if (used[chunkNo] == 0 && chunkNo != current) {
+            if (chunk.capacity() == CHUNK_SIZE) {
+                freeChunks.add(chunkNo);
+            } else {
+                // Large data chunks are not used again
+                chunks.set(chunkNo, null);
+            }
+        }
+    }
+
+    private int addChunk(ByteBuffer chunk) {
+        int chunkNo = chunks.size();
+        chunks.add(chunk);
+        if (chunkNo == used.length) {
+            used = Arrays.copyOf(used, chunkNo * 2);
+        }
+        return chunkNo;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        chunks.clear();
+        freeChunks.clear();
+        current = -1;
+        size = 0;
+    }
+}
@@ -24,17 +24,15 @@
 
 package photon.file.parts;
 
-import java.awt.*;
+import java.nio.ByteBuffer;
 
 /**
- * by bn on 10/07/2018.
+ * A layer store in direct buffers, the memory is outside of the heap but limited by the maximum direct memory size.
  */
-public class PhotonLine {
-    public Color color;
-    public int length;
+public class PhotonDirectStore extends PhotonChunkStore {
 
-    public PhotonLine(Color color, int length) {
-        this.color = color;
-        this.length = length;
+    @Override
+    protected ByteBuffer allocate(int chunkSize) {
+        return ByteBuffer.allocateDirect(chunkSize);
     }
 }
@@ -24,8 +24,6 @@
 
 package photon.file.parts;
 
-import java.io.ByteArrayInputStream;
-
 /**
  *  by bn on 30/06/2018.
  */
@@ -66,55 +64,59 @@ public class PhotonFileHeader {
     private int unknown5;
     private int unknown6;
 
-    public PhotonFileHeader(byte[] file) throws Exception {
-        PhotonInputStream ds = new PhotonInputStream(new ByteArrayInputStream(file));
+    public PhotonFileHeader(IPhotonFileSource source) throws Exception {
+        PhotonBufferReader reader = new PhotonBufferReader(source.read(0, getByteSize(2)));
 
-        header1 = ds.readInt();
-        version = ds.readInt();
+        header1 = reader.readInt();
+        version = reader.readInt();
 
-        bedXmm = ds.readFloat();
-        bedYmm = ds.readFloat();
-        bedZmm = ds.readFloat();
+        bedXmm = reader.readFloat();
+        bedYmm = reader.readFloat();
+        bedZmm = reader.readFloat();
 
-        unknown1 = ds.readInt();
-        unknown2 = ds.readInt();
-        unknown3 = ds.readInt();
+        unknown1 = reader.readInt();
+        unknown2 = reader.readInt();
+        unknown3 = reader.readInt();
 
-        layerHeightMilimeter = ds.readFloat();
-        exposureTimeSeconds = ds.readFloat();
-        exposureBottomTimeSeconds = ds.readFloat();
+        layerHeightMilimeter = reader.readFloat();
+        exposureTimeSeconds = reader.readFloat();
+        exposureBottomTimeSeconds = reader.readFloat();
 
-        offTimeSeconds = ds.readFloat();
-        bottomLayers = ds.readInt();
+        offTimeSeconds = reader.readFloat();
+        bottomLayers = reader.readInt();
 
-        resolutionX = ds.readInt();
-        resolutionY = ds.readInt();
+        resolutionX = reader.readInt();
+        resolutionY = reader.readInt();
 
-        previewOneOffsetAddress = ds.readInt();
-        layersDefinitionOffsetAddress = ds.readInt();
+        previewOneOffsetAddress = reader.readInt();
+        layersDefinitionOffsetAddress = reader.readInt();
 
-        numberOfLayers = ds.readInt();
+        numberOfLayers = reader.readInt();
 
-        previewTwoOffsetAddress = ds.readInt();
-        printTimeSeconds = ds.readInt();
+        previewTwoOffsetAddress = reader.readInt();
+        printTimeSeconds = reader.readInt();
 
-        projectType = PhotonProjectType.find(ds.readInt());
+        projectType = PhotonProjectType.find(reader.readInt());
 
-        printParametersOffsetAddress = ds.readInt();
-        printParametersSize = ds.readInt();
-        antiAliasingLevel = ds.readInt();
+        printParametersOffsetAddress = reader.readInt();
+        printParametersSize = reader.readInt();
+        antiAliasingLevel = reader.readInt();
 
-        lightPWM = ds.readShort();
-        bottomLightPWM = ds.readShort();
+        lightPWM = reader.readShort();
+        bottomLightPWM = reader.readShort();
 
-        unknown4 = ds.readInt();
-        unknown5 = ds.readInt();
+        unknown4 = reader.readInt();
+        unknown5 = reader.readInt();
         if (version>1) {
-            unknown6 = ds.readInt();
+            unknown6 = reader.readInt();
         }
     }
 
     public int getByteSize() {
+        return getByteSize(version);
+    }
+
+    private static int getByteSize(int version) {
         return 4+4 + 4+4+4 + 4+4+4 + 4+4+4 + 4+4 + 4+4 + 4+4 + 4 + 4+4 + 4 + 4+4+4 +2+2 +4+4+ (version>1?4:0);
     }
 
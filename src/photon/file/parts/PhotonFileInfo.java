@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+/**
+ * The header information of a photon file, read without loading previews or layers.
+ */
+public class PhotonFileInfo {
+    private PhotonFileHeader photonFileHeader;
+    private PhotonFilePrintParameters photonFilePrintParameters;
+
+    public PhotonFileInfo(PhotonFileHeader photonFileHeader, PhotonFilePrintParameters photonFilePrintParameters) {
+        this.photonFileHeader = photonFileHeader;
+        this.photonFilePrintParameters = photonFilePrintParameters;
+    }
+
+    public int getVersion() {
+        return photonFileHeader.getVersion();
+    }
+
+    public int getResolutionX() {
+        return photonFileHeader.getResolutionX();
+    }
+
+    public int getResolutionY() {
+        return photonFileHeader.getResolutionY();
+    }
+
+    public int getLayerCount() {
+        return photonFileHeader.getNumberOfLayers();
+    }
+
+    public float getLayerHeight() {
+        return photonFileHeader.getLayerHeight();
+    }
+
+    public float getExposureTimeSeconds() {
+        return photonFileHeader.getExposureTimeSeconds();
+    }
+
+    public float getBottomExposureTimeSeconds() {
+        return photonFileHeader.getBottomExposureTimeSeconds();
+    }
+
+    public float getOffTimeSeconds() {
+        return photonFileHeader.getOffTimeSeconds();
+    }
+
+    public int getBottomLayers() {
+        return photonFileHeader.getBottomLayers();
+    }
+
+    public int getAALevels() {
+        if (photonFileHeader.getVersion() > 1) {
+            return photonFileHeader.getAntiAliasingLevel();
+        }
+        return 1;
+    }
+
+    public PhotonFileHeader getPhotonFileHeader() {
+        return photonFileHeader;
+    }
+
+    /**
+     * The print parameters, only available in version 2 files.
+     */
+    public PhotonFilePrintParameters getPhotonFileParameters() {
+        return photonFilePrintParameters;
+    }
+}
@@ -26,7 +26,10 @@ package photon.file.parts;
 
 import photon.file.PhotonFile;
 
-import java.io.ByteArrayInputStream;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -36,20 +39,19 @@ public class PhotonFileLayer {
     private float layerPositionZ;
     private float layerExposure;
     private float layerOffTimeSeconds;
-    private int dataAddress;
+    private long dataAddress;
     private int dataSize;
     private int unknown1;
     private int unknown2;
     private int unknown3;
     private int unknown4;
 
-    private byte[] imageData;
+    // The image data, the packed layer image and the islands, and where they are kept
+    private PhotonLayerData layerData;
 
-    private byte[] packedLayerImage;
-
-    private ArrayList<BitSet> islandRows;
-    private int isLandsCount;
     private long pixels;
+    // The bounding box of the lit pixels, found when the image data is decoded for a calculation
+    private Rectangle bounds;
 
     private ArrayList<PhotonFileLayer> antiAliasLayers = new ArrayList<>();
 
@@ -57,18 +59,25 @@ public class PhotonFileLayer {
     private PhotonFileHeader photonFileHeader;
     public boolean isCalculated;
 
-    private PhotonFileLayer(PhotonInputStream ds) throws Exception {
-        layerPositionZ = ds.readFloat();
-        layerExposure = ds.readFloat();
-        layerOffTimeSeconds = ds.readFloat();
+    // Evicted calculated layers are calculated again against the previous layer
+    private PhotonFileLayer previousLayer;
+    // The image data is saved at the address of another layer with the same data
+    private boolean sharedData;
+    // Calculated by calculateLayerRuns, and calculated the same way again after eviction
+    private boolean calculatedOnRuns;
+
+    private PhotonFileLayer(PhotonBufferReader reader) {
+        layerPositionZ = reader.readFloat();
+        layerExposure = reader.readFloat();
+        layerOffTimeSeconds = reader.readFloat();
 
-        dataAddress = ds.readInt();
-        dataSize = ds.readInt();
+        dataAddress = Integer.toUnsignedLong(reader.readInt());
+        dataSize = reader.readInt();
 
-        unknown1 = ds.readInt();
-        unknown2 = ds.readInt();
-        unknown3 = ds.readInt();
-        unknown4 = ds.readInt();
+        unknown1 = reader.readInt();
+        unknown2 = reader.readInt();
+        unknown3 = reader.readInt();
+        unknown4 = reader.readInt();
     }
 
     public PhotonFileLayer(PhotonFileLayer photonFileLayer, PhotonFileHeader photonFileHeader) {
@@ -76,26 +85,54 @@ public class PhotonFileLayer {
         layerExposure = photonFileLayer.layerExposure;
         layerOffTimeSeconds = photonFileLayer.layerOffTimeSeconds;
         dataAddress = photonFileLayer.dataAddress;
-        dataAddress = photonFileLayer.dataSize;
+        dataSize = photonFileLayer.dataSize;
 
         this.photonFileHeader = photonFileHeader;
+        this.layerData = new PhotonLayerData(this, photonFileLayer.layerData.getLayerStore());
 
         // Dont copy data, we are building new AA layers anyway
         //this.imageData = copy();
         //this.packedLayerImage = copy();
     }
 
-    public int savePos(int dataPosition) throws Exception {
+    public long savePos(long dataPosition) throws Exception {
         dataAddress = dataPosition;
+        sharedData = false;
         return dataPosition + dataSize;
     }
 
+    /**
+     * Save the layer pointing at the image data of a layer with the same data, which is saved before this one.
+     */
+    public void shareData(PhotonFileLayer layer) {
+        dataAddress = layer.dataAddress;
+        sharedData = true;
+    }
+
+    /**
+     * The 64 bit XXH64 hash of the image data, computed when the data is read or encoded, or on first use when lazy loaded.
+     */
+    public long getDataHash() {
+        return layerData.getDataHash();
+    }
+
+    /**
+     * The size of the layer data on the heap, as it is counted in the layer cache.
+     */
+    long getHeapSize() {
+        return layerData.getCacheSize();
+    }
+
+    public boolean hasSameData(PhotonFileLayer layer) {
+        return dataSize == layer.dataSize && imageData().equals(layer.imageData());
+    }
+
     public void save(PhotonOutputStream os) throws Exception {
         os.writeFloat(layerPositionZ);
         os.writeFloat(layerExposure);
         os.writeFloat(layerOffTimeSeconds);
 
-        os.writeInt(dataAddress);
+        os.writeInt((int) dataAddress); // unsigned 32 bit address
         os.writeInt(dataSize);
 
         os.writeInt(unknown1);
@@ -105,21 +142,35 @@ public class PhotonFileLayer {
     }
 
     public void saveData(PhotonOutputStream os) throws Exception {
-        os.write(imageData, 0, dataSize);
+        if (sharedData) {
+            return;
+        }
+        layerData.accessed();
+        layerData.save(os);
     }
 
     public static int getByteSize() {
         return 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4;
     }
 
+    /**
+     * True when the data of this layer is unchanged and stored in the source at the address.
+     */
+    public boolean isStoredAt(IPhotonFileSource source, long address) {
+        return layerData.isStoredAt(source, address);
+    }
+
     public ArrayList<BitSet> unpackImage(int resolutionX) {
-        pixels = 0;
+        layerData.accessed();
+        ByteBuffer imageData = imageData();
+        long pixels = 0;
         resolutionX = resolutionX - 1;
         ArrayList<BitSet> unpackedImage = new ArrayList<>();
         BitSet currentRow = new BitSet();
         unpackedImage.add(currentRow);
         int x = 0;
-        for (byte rle : imageData) {
+        for (int i = 0; i < imageData.limit(); i++) {
+            byte rle = imageData.get(i);
             int length = rle & 0x7F;
             boolean color = (rle & 0x80) == 0x80;
             if (color) {
@@ -145,6 +196,7 @@ public class PhotonFileLayer {
                 x = 0;
             }
         }
+        this.pixels = pixels;
         return unpackedImage;
     }
 
@@ -163,52 +215,67 @@ public class PhotonFileLayer {
         }
     }
 
-    private void unknownPixels(ArrayList<BitSet> unpackedImage, PhotonLayer photonLayer) {
+    /**
+     * Decode the image data into the bitmap, and keep the pixel count and the bounding box.
+     */
+    private void decode(PhotonLayerBitmap bitmap) {
+        pixels = bitmap.decode(imageData());
+        bounds = bitmap.isEmpty() ? new Rectangle() : new Rectangle(bitmap.getFirstColumn(), bitmap.getFirstRow(),
+                bitmap.getLastColumn() - bitmap.getFirstColumn() + 1, bitmap.getLastRow() - bitmap.getFirstRow() + 1);
+    }
+
+    private void decode(PhotonLayerRuns runs) {
+        pixels = runs.decode(imageData());
+        bounds = runs.isEmpty() ? new Rectangle() : new Rectangle(runs.getFirstColumn(), runs.getFirstRow(),
+                runs.getLastColumn() - runs.getFirstColumn() + 1, runs.getLastRow() - runs.getFirstRow() + 1);
+    }
+
+    private void unknownPixels(PhotonLayerBitmap bitmap, PhotonLayer photonLayer) {
         photonLayer.clear();
 
-        for (int y = 0; y < unpackedImage.size(); y++) {
-            BitSet currentRow = unpackedImage.get(y);
-            if (currentRow != null) {
-                for (int x = 0; x < currentRow.length(); x++) {
-                    if (currentRow.get(x)) {
-                        photonLayer.supported(x, y);
-                    }
+        for (int y = bitmap.getFirstRow(); y <= bitmap.getLastRow(); y++) {
+            for (int word = bitmap.getFirstColumn() >> 6; word <= bitmap.getLastColumn() >> 6; word++) {
+                long pixels = bitmap.getWord(y, word);
+                while (pixels != 0) {
+                    photonLayer.supported((word << 6) + Long.numberOfTrailingZeros(pixels), y);
+                    pixels &= pixels - 1;
                 }
             }
         }
     }
 
-    private void calculate(ArrayList<BitSet> unpackedImage, ArrayList<BitSet> previousUnpackedImage, PhotonLayer photonLayer) {
-        islandRows = new ArrayList<>();
-        isLandsCount = 0;
-
+    private void calculate(PhotonLayerBitmap bitmap, PhotonLayerBitmap previousBitmap, PhotonLayer photonLayer) {
         photonLayer.clear();
 
-        for (int y = 0; y < unpackedImage.size(); y++) {
-            BitSet currentRow = unpackedImage.get(y);
-            BitSet prevRow = previousUnpackedImage != null ? previousUnpackedImage.get(y) : null;
-            if (currentRow != null) {
-                for (int x = 0; x < currentRow.length(); x++) {
-                    if (currentRow.get(x)) {
-                        if (prevRow == null || prevRow.get(x)) {
-                            photonLayer.supported(x, y);
-                        } else {
-                            photonLayer.island(x, y);
-                        }
+        for (int y = bitmap.getFirstRow(); y <= bitmap.getLastRow(); y++) {
+            for (int word = bitmap.getFirstColumn() >> 6; word <= bitmap.getLastColumn() >> 6; word++) {
+                long pixels = bitmap.getWord(y, word);
+                if (pixels != 0) {
+                    long previousPixels = previousBitmap != null ? previousBitmap.getWord(y, word) : -1L;
+                    long supported = pixels & previousPixels;
+                    while (supported != 0) {
+                        photonLayer.supported((word << 6) + Long.numberOfTrailingZeros(supported), y);
+                        supported &= supported - 1;
+                    }
+                    long islands = pixels & ~previousPixels;
+                    while (islands != 0) {
+                        photonLayer.island((word << 6) + Long.numberOfTrailingZeros(islands), y);
+                        islands &= islands - 1;
                     }
                 }
             }
         }
 
         photonLayer.reduce();
-
-        isLandsCount = photonLayer.setIslands(islandRows);
     }
 
 
-    public static List<PhotonFileLayer> readLayers(PhotonFileHeader photonFileHeader, byte[] file, int margin, IPhotonProgress iPhotonProgress) throws Exception {
-        PhotonLayer photonLayer = new PhotonLayer(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
-
+    /**
+     * Read the layer definitions and image data. With a layer cache the image data is not read, but fetched from the source when needed.
+     * <p/>
+     * The definitions are read in order, then the image data of the layers is read and decoded in parallel.
+     */
+    public static List<PhotonFileLayer> readLayers(PhotonFileHeader photonFileHeader, IPhotonFileSource source, PhotonLayerCache layerCache, IPhotonLayerStore layerStore, int parallelism, int margin, IPhotonProgress iPhotonProgress) throws Exception {
         List<PhotonFileLayer> layers = new ArrayList<>();
 
         int antiAliasLevel = 1;
@@ -218,39 +285,143 @@ public class PhotonFileLayer {
 
         int layerCount = photonFileHeader.getNumberOfLayers();
 
-        try (PhotonInputStream ds = new PhotonInputStream(new ByteArrayInputStream(file, photonFileHeader.getLayersDefinitionOffsetAddress(), file.length))) {
-            Hashtable<Integer, PhotonFileLayer> layerMap = new Hashtable<>();
-            for (int i = 0; i < layerCount; i++) {
+        iPhotonProgress.showInfo("Reading photon file layer definitions...");
+
+        int definitionSize = getByteSize() * layerCount * antiAliasLevel;
+        PhotonBufferReader reader = new PhotonBufferReader(source.read(photonFileHeader.getLayersDefinitionOffsetAddress(), definitionSize));
+        PhotonFileLayer previousLayer = null;
+        for (int i = 0; i < layerCount; i++) {
+            PhotonFileLayer layer = new PhotonFileLayer(reader);
+            layer.photonFileHeader = photonFileHeader;
+            layer.layerData = new PhotonLayerData(layer, layerStore);
+            layer.previousLayer = previousLayer;
+            layers.add(layer);
+            previousLayer = layer;
+        }
+
+        if (antiAliasLevel > 1) {
+            for (int a = 0; a < (antiAliasLevel - 1); a++) {
+                for (int i = 0; i < layerCount; i++) {
+                    PhotonFileLayer layer = new PhotonFileLayer(reader);
+                    layer.photonFileHeader = photonFileHeader;
+                    layer.layerData = new PhotonLayerData(layer, layerStore);
+                    layers.get(i).addAntiAliasLayer(layer);
+                }
+            }
+        }
 
-                iPhotonProgress.showInfo("Reading photon file layer " + (i + 1) + "/" + photonFileHeader.getNumberOfLayers());
+        iPhotonProgress.showInfo("Reading photon file layer data...");
 
-                PhotonFileLayer layer = new PhotonFileLayer(ds);
-                layer.photonFileHeader = photonFileHeader;
-                layer.imageData = Arrays.copyOfRange(file, layer.dataAddress, layer.dataAddress + layer.dataSize);
-                layers.add(layer);
-                layerMap.put(i, layer);
+        PhotonProgressTracker tracker = new PhotonProgressTracker(iPhotonProgress, "Reading photon file layer", layerCount);
+        PhotonLayerTask.run(parallelism, layerCount, layerNo -> {
+            tracker.step();
+            PhotonFileLayer layer = layers.get(layerNo);
+            layer.load(source, layerCache);
+            for (PhotonFileLayer aaLayer : layer.antiAliasLayers) {
+                aaLayer.load(source, layerCache);
             }
+        });
 
-            if (antiAliasLevel > 1) {
-                for (int a = 0; a < (antiAliasLevel - 1); a++) {
-                    for (int i = 0; i < layerCount; i++) {
-                        iPhotonProgress.showInfo("Reading photon file AA " + (2 + a) + "/" + antiAliasLevel + " layer " + (i + 1) + "/" + photonFileHeader.getNumberOfLayers());
+        return layers;
+    }
 
-                        PhotonFileLayer layer = new PhotonFileLayer(ds);
-                        layer.photonFileHeader = photonFileHeader;
-                        layer.imageData = Arrays.copyOfRange(file, layer.dataAddress, layer.dataAddress + layer.dataSize);
+    /**
+     * Encode the image data of all saved layers and their AA layers in parallel, ahead of writing them.
+     */
+    public static void encodeLayers(List<PhotonFileLayer> layers, int parallelism) throws Exception {
+        PhotonLayerTask.run(parallelism, layers.size(), layerNo -> {
+            PhotonFileLayer layer = layers.get(layerNo);
+            layer.encode();
+            for (PhotonFileLayer aaLayer : layer.antiAliasLayers) {
+                aaLayer.encode();
+            }
+        });
+    }
 
-                        layerMap.get(i).addAntiAliasLayer(layer);
+    private void load(IPhotonFileSource source, PhotonLayerCache layerCache) throws IOException {
+        ByteBuffer data = layerData.load(source, dataAddress, dataSize, layerCache);
+        if (data != null) {
+            pixels = countPixels(data);
+        }
+    }
 
-                    }
-                }
+    private static long countPixels(ByteBuffer imageData) {
+        long pixels = 0;
+        for (int i = 0; i < imageData.limit(); i++) {
+            byte rle = imageData.get(i);
+            if ((rle & 0x80) == 0x80) {
+                pixels += rle & 0x7F;
             }
         }
+        return pixels;
+    }
 
-        photonLayer.unLink();
-        System.gc();
+    private ByteBuffer imageData() {
+        ByteBuffer data = layerData.imageData();
+        if (data != null) {
+            // Encoded image data has a new size
+            dataSize = data.limit();
+        }
+        return data;
+    }
 
-        return layers;
+    private void encode() {
+        ByteBuffer data = layerData.encode();
+        if (data != null) {
+            dataSize = data.limit();
+        }
+    }
+
+    /**
+     * Rebuild an evicted layer image, calculated layers are checked against the previous layer again.
+     *
+     * @param rows Filled with the island rows of a calculated layer
+     */
+    byte[] recalculate(ArrayList<BitSet> rows) {
+        if (calculatedOnRuns) {
+            PhotonLayerRuns runs = new PhotonLayerRuns(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+            decode(runs);
+            byte[] packed;
+            if (isCalculated) {
+                PhotonLayerRuns previousRuns = null;
+                if (previousLayer != null) {
+                    previousRuns = new PhotonLayerRuns(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+                    previousRuns.decode(previousLayer.imageData());
+                }
+                PhotonLayerRuns calculatedRuns = new PhotonLayerRuns(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+                calculatedRuns.calculate(runs, previousRuns);
+                packed = calculatedRuns.packLayerImage();
+                layerData.setPackedLayerImage(packed, rows, calculatedRuns.setIslands(rows), calculatedRuns.getIslandSizes());
+            } else {
+                packed = runs.packLayerImage();
+                layerData.setPackedLayerImage(packed);
+            }
+            return packed;
+        }
+        PhotonLayer photonLayer = PhotonLayer.acquire(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+        try {
+            PhotonLayerBitmap bitmap = new PhotonLayerBitmap(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+            decode(bitmap);
+            if (isCalculated) {
+                PhotonLayerBitmap previousBitmap = null;
+                if (previousLayer != null) {
+                    previousBitmap = new PhotonLayerBitmap(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+                    previousBitmap.decode(previousLayer.imageData());
+                }
+                calculate(bitmap, previousBitmap, photonLayer);
+                byte[] packed = photonLayer.packLayerImage();
+                layerData.setPackedLayerImage(packed, rows, photonLayer.setIslands(rows), photonLayer.getIslandSizes());
+                return packed;
+            }
+            unknownPixels(bitmap, photonLayer);
+            byte[] packed = photonLayer.packLayerImage();
+            layerData.setPackedLayerImage(packed);
+            return packed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            PhotonLayer.release(photonLayer);
+        }
     }
 
     private void addAntiAliasLayer(PhotonFileLayer layer) {
@@ -258,151 +429,224 @@ public class PhotonFileLayer {
     }
 
     public static void calculateAALayers(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, PhotonAaMatrix photonAaMatrix, IPhotonProgress iPhotonProgress) throws Exception {
-        PhotonLayer photonLayer = new PhotonLayer(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
-        int[][] source = new int[photonFileHeader.getResolutionY()][photonFileHeader.getResolutionX()];
-
-        int i = 0;
-        for (PhotonFileLayer layer : layers) {
-            ArrayList<BitSet> unpackedImage = layer.unpackImage(photonFileHeader.getResolutionX());
-
-            iPhotonProgress.showInfo("Calculating AA for photon file layer " + i + "/" + photonFileHeader.getNumberOfLayers());
-
-
-            for (int y = 0; y < photonFileHeader.getResolutionY(); y++) {
-                for (int x = 0; x < photonFileHeader.getResolutionX(); x++) {
-                    source[y][x] = 0;
+        int width = photonFileHeader.getResolutionX();
+        int height = photonFileHeader.getResolutionY();
+        PhotonLayer photonLayer = PhotonLayer.acquire(width, height);
+        try {
+            int[][] source = new int[height][width];
+            PhotonLayerBitmap bitmap = new PhotonLayerBitmap(width, height);
+            // The part of the source filled by the previous layer
+            Rectangle filled = null;
+
+            PhotonProgressTracker tracker = new PhotonProgressTracker(iPhotonProgress, "Calculating AA for photon file layer", photonFileHeader.getNumberOfLayers());
+            for (PhotonFileLayer layer : layers) {
+                tracker.step();
+                if (filled != null) {
+                    for (int y = filled.y; y < filled.y + filled.height; y++) {
+                        Arrays.fill(source[y], filled.x, filled.x + filled.width, 0);
+                    }
                 }
-            }
-
-            for (int y = 0; y < unpackedImage.size(); y++) {
-                BitSet currentRow = unpackedImage.get(y);
-                if (currentRow != null) {
-                    for (int x = 0; x < currentRow.length(); x++) {
-                        if (currentRow.get(x)) {
-                            source[y][x] = 255;
+                layer.layerData.accessed();
+                layer.decode(bitmap);
+
+                for (int y = bitmap.getFirstRow(); y <= bitmap.getLastRow(); y++) {
+                    for (int word = bitmap.getFirstColumn() >> 6; word <= bitmap.getLastColumn() >> 6; word++) {
+                        long pixels = bitmap.getWord(y, word);
+                        while (pixels != 0) {
+                            source[y][(word << 6) + Long.numberOfTrailingZeros(pixels)] = 255;
+                            pixels &= pixels - 1;
                         }
                     }
                 }
-            }
-
-            // Calc
-            int[][] target = photonAaMatrix.calc(source);
 
-            int aaTresholdDiff = 255 / photonFileHeader.getAntiAliasingLevel();
-            int aaTreshold = 0;
-            for (PhotonFileLayer aaFileLayer : layer.antiAliasLayers) {
-                photonLayer.clear();
-                aaTreshold += aaTresholdDiff;
+                // Calc, only within reach of the lit pixels as the filter is 0 everywhere else
+                filled = new Rectangle();
+                if (!bitmap.isEmpty()) {
+                    filled = photonAaMatrix.calc(source, Integer.max(0, bitmap.getFirstColumn() - 2), Integer.max(0, bitmap.getFirstRow() - 2),
+                            Integer.min(width - 1, bitmap.getLastColumn() + 2), Integer.min(height - 1, bitmap.getLastRow() + 2));
+                }
 
-                for (int y = 0; y < photonFileHeader.getResolutionY(); y++) {
-                    for (int x = 0; x < photonFileHeader.getResolutionX(); x++) {
-                        if (target[y][x] >= aaTreshold) {
-                            photonLayer.supported(x, y);
+                int aaTresholdDiff = 255 / photonFileHeader.getAntiAliasingLevel();
+                int aaTreshold = 0;
+                for (PhotonFileLayer aaFileLayer : layer.antiAliasLayers) {
+                    photonLayer.clear();
+                    aaTreshold += aaTresholdDiff;
+
+                    for (int y = filled.y; y < filled.y + filled.height; y++) {
+                        for (int x = filled.x; x < filled.x + filled.width; x++) {
+                            if (source[y][x] >= aaTreshold) {
+                                photonLayer.supported(x, y);
+                            }
                         }
                     }
-                }
 
-                aaFileLayer.saveLayer(photonLayer);
+                    aaFileLayer.saveLayer(photonLayer);
+                }
             }
-
-            i++;
+        } finally {
+            PhotonLayer.release(photonLayer);
         }
-        photonLayer.unLink();
         System.gc();
 
     }
 
-    public static void calculateLayers(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, int margin, IPhotonProgress iPhotonProgress) throws Exception {
-        PhotonLayer photonLayer = new PhotonLayer(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
-        ArrayList<BitSet> previousUnpackedImage = null;
-        int i = 0;
-        for (PhotonFileLayer layer : layers) {
-            ArrayList<BitSet> unpackedImage = layer.unpackImage(photonFileHeader.getResolutionX());
-
-            iPhotonProgress.showInfo("Calculating photon file layer " + i + "/" + photonFileHeader.getNumberOfLayers());
+    /**
+     * Calculate the islands of the layers from (inclusive) to (exclusive). A layer only depends on its own image data and
+     * the image data of the previous layer, so the layers are split in parts calculated in parallel, where each part
+     * decodes the layer before it.
+     */
+    public static void calculateLayers(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, int margin, int from, int to, int parallelism, IPhotonProgress iPhotonProgress) throws Exception {
+        if (parallelism > 1) {
+            // The image data of a layer can be used by two parts, so encode it before
+            encodeLayers(layers.subList(Integer.max(0, from - 1), to), parallelism);
+        }
+        PhotonProgressTracker tracker = new PhotonProgressTracker(iPhotonProgress, "Calculating photon file layer", to - from);
+        PhotonLayerTask.runRanges(parallelism, from, to, (partFrom, partTo) -> calculateLayers(photonFileHeader, layers, margin, partFrom, partTo, tracker));
+        System.gc();
+    }
 
-            if (margin > 0) {
-                layer.extendsMargin = layer.checkMagin(unpackedImage, margin);
+    private static void calculateLayers(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, int margin, int from, int to, PhotonProgressTracker tracker) throws Exception {
+        PhotonLayer photonLayer = PhotonLayer.acquire(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+        try {
+            // The current and previous layer, swapped after each layer
+            PhotonLayerBitmap bitmap = new PhotonLayerBitmap(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+            PhotonLayerBitmap previousBitmap = new PhotonLayerBitmap(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+            boolean first = from == 0;
+            if (!first) {
+                previousBitmap.decode(layers.get(from - 1).imageData());
             }
+            for (PhotonFileLayer layer : layers.subList(from, to)) {
+                tracker.step();
+                layer.layerData.accessed();
+                layer.decode(bitmap);
 
-            layer.unknownPixels(unpackedImage, photonLayer);
+                if (margin > 0) {
+                    layer.extendsMargin = layer.checkMagin(bitmap, margin);
+                }
 
-            layer.calculate(unpackedImage, previousUnpackedImage, photonLayer);
+                layer.calculate(bitmap, first ? null : previousBitmap, photonLayer);
 
-            if (previousUnpackedImage != null) {
-                previousUnpackedImage.clear();
-            }
-            previousUnpackedImage = unpackedImage;
+                PhotonLayerBitmap swap = previousBitmap;
+                previousBitmap = bitmap;
+                bitmap = swap;
+                first = false;
 
-            layer.packedLayerImage = photonLayer.packLayerImage();
-            layer.isCalculated = true;
+                layer.isCalculated = true;
+                ArrayList<BitSet> rows = new ArrayList<>();
+                layer.layerData.setPackedLayerImage(photonLayer.packLayerImage(), rows, photonLayer.setIslands(rows), photonLayer.getIslandSizes());
 
-            if (photonFileHeader.getVersion() > 1) {
-                for (PhotonFileLayer aaFileLayer : layer.antiAliasLayers) {
-                    ArrayList<BitSet> aaUnpackedImage = aaFileLayer.unpackImage(photonFileHeader.getResolutionX());
-                    PhotonLayer aaPhotonLayer = new PhotonLayer(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
-                    aaFileLayer.unknownPixels(aaUnpackedImage, aaPhotonLayer);
-                    aaFileLayer.packedLayerImage = aaPhotonLayer.packLayerImage();
-                    aaFileLayer.isCalculated = false;
+                if (photonFileHeader.getVersion() > 1) {
+                    for (PhotonFileLayer aaFileLayer : layer.antiAliasLayers) {
+                        aaFileLayer.decode(bitmap);
+                        // The layer is packed, so reuse it for the AA layers
+                        aaFileLayer.unknownPixels(bitmap, photonLayer);
+                        aaFileLayer.isCalculated = false;
+                        aaFileLayer.layerData.setPackedLayerImage(photonLayer.packLayerImage());
+                    }
                 }
             }
-
-            i++;
+        } finally {
+            PhotonLayer.release(photonLayer);
         }
-        photonLayer.unLink();
-        System.gc();
     }
 
-    public static void calculateLayers(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, int margin, int layerNo) throws Exception {
-        PhotonLayer photonLayer = new PhotonLayer(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
-        ArrayList<BitSet> previousUnpackedImage = null;
-
-        if (layerNo > 0) {
-            previousUnpackedImage = layers.get(layerNo - 1).unpackImage(photonFileHeader.getResolutionX());
+    /**
+     * Calculate the layers on runs of pixels instead of on pixels, see PhotonLayerRuns. The result is the same as the
+     * result of calculateLayers, and the layers are split in parts calculated in parallel the same way.
+     */
+    public static void calculateLayerRuns(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, int margin, int from, int to, int parallelism, IPhotonProgress iPhotonProgress) throws Exception {
+        if (parallelism > 1) {
+            encodeLayers(layers.subList(Integer.max(0, from - 1), to), parallelism);
         }
-
-        for (int i = 0; i < 2; i++) {
-            PhotonFileLayer layer = layers.get(layerNo + i);
-            ArrayList<BitSet> unpackedImage = layer.unpackImage(photonFileHeader.getResolutionX());
+        PhotonProgressTracker tracker = new PhotonProgressTracker(iPhotonProgress, "Calculating photon file layer", to - from);
+        PhotonLayerTask.runRanges(parallelism, from, to, (partFrom, partTo) -> calculateLayerRuns(photonFileHeader, layers, margin, partFrom, partTo, tracker));
+    }
+
+    private static void calculateLayerRuns(PhotonFileHeader photonFileHeader, List<PhotonFileLayer> layers, int margin, int from, int to, PhotonProgressTracker tracker) {
+        int width = photonFileHeader.getResolutionX();
+        int height = photonFileHeader.getResolutionY();
+        PhotonLayerRuns runs = new PhotonLayerRuns(width, height);
+        PhotonLayerRuns previousRuns = new PhotonLayerRuns(width, height);
+        PhotonLayerRuns calculatedRuns = new PhotonLayerRuns(width, height);
+        boolean first = from == 0;
+        if (!first) {
+            previousRuns.decode(layers.get(from - 1).imageData());
+        }
+        for (PhotonFileLayer layer : layers.subList(from, to)) {
+            tracker.step();
+            layer.layerData.accessed();
+            layer.decode(runs);
 
             if (margin > 0) {
-                layer.extendsMargin = layer.checkMagin(unpackedImage, margin);
+                layer.extendsMargin = runs.extendsMargin(margin);
             }
 
-            layer.unknownPixels(unpackedImage, photonLayer);
-
-            layer.calculate(unpackedImage, previousUnpackedImage, photonLayer);
+            calculatedRuns.calculate(runs, first ? null : previousRuns);
 
-            if (previousUnpackedImage != null) {
-                previousUnpackedImage.clear();
-            }
-            previousUnpackedImage = unpackedImage;
+            PhotonLayerRuns swap = previousRuns;
+            previousRuns = runs;
+            runs = swap;
+            first = false;
 
-            layer.packedLayerImage = photonLayer.packLayerImage();
             layer.isCalculated = true;
+            layer.calculatedOnRuns = true;
+            ArrayList<BitSet> rows = new ArrayList<>();
+            layer.layerData.setPackedLayerImage(calculatedRuns.packLayerImage(), rows, calculatedRuns.setIslands(rows), calculatedRuns.getIslandSizes());
 
-            i++;
+            if (photonFileHeader.getVersion() > 1) {
+                for (PhotonFileLayer aaFileLayer : layer.antiAliasLayers) {
+                    aaFileLayer.decode(runs);
+                    aaFileLayer.isCalculated = false;
+                    aaFileLayer.calculatedOnRuns = true;
+                    aaFileLayer.layerData.setPackedLayerImage(runs.packLayerImage());
+                }
+            }
         }
-        photonLayer.unLink();
-        System.gc();
     }
 
-    public ArrayList<PhotonRow> getRows() {
-        return PhotonLayer.getRows(packedLayerImage, photonFileHeader.getResolutionX(), isCalculated);
+    /**
+     * Get the runs of the layer for drawing. The runs are decoded into the given runs when they have the size of the
+     * layer, so they can be reused for the next layer.
+     */
+    public PhotonLayerRuns getLayerRuns(PhotonLayerRuns runs) {
+        if (runs == null || runs.getWidth() != photonFileHeader.getResolutionX() || runs.getHeight() != photonFileHeader.getResolutionY()) {
+            runs = new PhotonLayerRuns(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
+        }
+        layerData.accessed();
+        runs.unpackLayerImage(layerData.packedLayerImage());
+        return runs;
     }
 
     public ArrayList<BitSet> getIslandRows() {
-        return islandRows;
+        return layerData.getIslandRows();
     }
 
     public int getIsLandsCount() {
-        return isLandsCount;
+        return layerData.getIsLandsCount();
+    }
+
+    /**
+     * Get the number of pixels in each island, in the order the islands are found from the top left of the layer.
+     *
+     * @return The island sizes, or null when the layer has not been calculated
+     */
+    public int[] getIslandSizes() {
+        return layerData.getIslandSizes();
     }
 
     public long getPixels() {
         return pixels;
     }
 
+    /**
+     * Get the bounding box of the lit pixels, empty when there are none.
+     *
+     * @return The bounding box, or null when the layer has not been decoded for a calculation yet
+     */
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
     public float getLayerPositionZ() {
         return layerPositionZ;
     }
@@ -428,40 +672,41 @@ public class PhotonFileLayer {
     }
 
     public void unLink() {
-        imageData = null;
-        packedLayerImage = null;
-        if (islandRows != null) {
-            islandRows.clear();
-        }
+        layerData.unLink();
         photonFileHeader = null;
+        previousLayer = null;
     }
 
     public boolean doExtendMargin() {
         return extendsMargin;
     }
 
-    private boolean checkMagin(ArrayList<BitSet> unpackedImage, int margin) {
-        if (unpackedImage.size() > margin) {
+    private boolean checkMagin(PhotonLayerBitmap bitmap, int margin) {
+        if (bitmap.isEmpty() || bitmap.getFirstRow() >= margin && bitmap.getLastRow() < bitmap.getRows() - margin
+                && bitmap.getFirstColumn() >= margin && bitmap.getLastColumn() <= photonFileHeader.getResolutionX() - margin) {
+            // All pixels are inside the margin
+            return false;
+        }
+        if (bitmap.getRows() > margin) {
             // check top margin rows
             for (int i = 0; i < margin; i++) {
-                if (!unpackedImage.get(i).isEmpty()) {
+                if (!bitmap.isEmpty(i)) {
                     return true;
                 }
             }
             // check bottom margin rows
-            for (int i = unpackedImage.size() - margin; i < unpackedImage.size(); i++) {
-                if (!unpackedImage.get(i).isEmpty()) {
+            for (int i = bitmap.getRows() - margin; i < bitmap.getRows(); i++) {
+                if (!bitmap.isEmpty(i)) {
                     return true;
                 }
             }
 
-            for (int i = margin; i < unpackedImage.size() - margin; i++) {
-                BitSet row = unpackedImage.get(i);
-                int nextBit = row.nextSetBit(0);
+            for (int i = margin; i < bitmap.getRows() - margin; i++) {
+                int nextBit = bitmap.nextSetBit(i, 0);
                 if (nextBit >= 0 && nextBit < margin) {
                     return true;
                 }
-                nextBit = row.nextSetBit(photonFileHeader.getResolutionX() - margin);
+                nextBit = bitmap.nextSetBit(i, photonFileHeader.getResolutionX() - margin);
                 if (nextBit > photonFileHeader.getResolutionX() - margin) {
                     return true;
                 }
@@ -472,26 +717,25 @@ public class PhotonFileLayer {
     }
 
     public PhotonLayer getLayer() {
+        layerData.accessed();
         PhotonLayer photonLayer = new PhotonLayer(photonFileHeader.getResolutionX(), photonFileHeader.getResolutionY());
-        photonLayer.unpackLayerImage(packedLayerImage);
+        photonLayer.unpackLayerImage(layerData.packedLayerImage());
         return photonLayer;
     }
 
     public void getUpdateLayer(PhotonLayer photonLayer) {
-        photonLayer.unpackLayerImage(packedLayerImage);
+        layerData.accessed();
+        photonLayer.unpackLayerImage(layerData.packedLayerImage());
     }
 
     public void updateLayerIslands(PhotonLayer photonLayer) {
-        islandRows = new ArrayList<>();
-        isLandsCount = photonLayer.setIslands(islandRows);
+        ArrayList<BitSet> rows = new ArrayList<>();
+        layerData.setIslands(rows, photonLayer.setIslands(rows), photonLayer.getIslandSizes());
     }
 
     public void saveLayer(PhotonLayer photonLayer) throws Exception {
-        this.packedLayerImage = photonLayer.packLayerImage();
-        this.imageData = photonLayer.packImageData();
-        this.dataSize = imageData.length;
-        islandRows = new ArrayList<>();
-        isLandsCount = photonLayer.setIslands(islandRows);
+        ArrayList<BitSet> rows = new ArrayList<>();
+        layerData.replace(photonLayer.packLayerImage(), rows, photonLayer.setIslands(rows), photonLayer.getIslandSizes());
     }
 
     public ArrayList<BitSet> getUnknownRows() {
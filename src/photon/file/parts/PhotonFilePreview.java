@@ -24,8 +24,9 @@
 
 package photon.file.parts;
 
-import java.io.ByteArrayInputStream;
-import java.util.Arrays;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
 
 /**
  * by bn on 01/07/2018.
@@ -36,31 +37,28 @@ public class PhotonFilePreview {
     private int imageAddress;
     private int dataSize;
 
-    private byte[] rawImageData;
+    private ByteBuffer rawImageData;
 
-    private int[] imageData;
+    private BufferedImage image;
 
     private int p1;
     private int p2;
     private int p3;
     private int p4;
 
-    public PhotonFilePreview(int previewAddress, byte[] file) throws Exception {
-        byte[] data = Arrays.copyOfRange(file, previewAddress, previewAddress + 32);
-        PhotonInputStream ds = new PhotonInputStream(new ByteArrayInputStream(data));
+    public PhotonFilePreview(int previewAddress, IPhotonFileSource source) throws Exception {
+        PhotonBufferReader reader = new PhotonBufferReader(source.read(previewAddress, 4+4+4+4 + 4+4+4+4));
 
-        resolutionX = ds.readInt();
-        resolutionY = ds.readInt();
-        imageAddress = ds.readInt();
-        dataSize = ds.readInt();
-        p1 = ds.readInt();
-        p2 = ds.readInt();
-        p3 = ds.readInt();
-        p4 = ds.readInt();
+        resolutionX = reader.readInt();
+        resolutionY = reader.readInt();
+        imageAddress = reader.readInt();
+        dataSize = reader.readInt();
+        p1 = reader.readInt();
+        p2 = reader.readInt();
+        p3 = reader.readInt();
+        p4 = reader.readInt();
 
-        rawImageData = Arrays.copyOfRange(file, imageAddress, imageAddress + dataSize);
-
-        decodeImageData();
+        rawImageData = source.read(imageAddress, dataSize);
     }
 
     public void save(PhotonOutputStream os, int startAddress) throws Exception {
@@ -72,18 +70,23 @@ public class PhotonFilePreview {
         os.writeInt(p2);
         os.writeInt(p3);
         os.writeInt(p4);
-        os.write(rawImageData, 0, dataSize);
+        os.write(rawImageData);
+    }
+
+    public boolean isStoredAt(int startAddress) {
+        return imageAddress == startAddress + 4+4+4+4 + 4+4+4+4;
     }
 
     public int getByteSize() {
         return 4+4+4+4 + 4+4+4+4 + dataSize;
     }
 
-    private void decodeImageData() {
-        imageData = new int[resolutionX * resolutionY];
+    private BufferedImage decodeImageData() {
+        BufferedImage image = new BufferedImage(resolutionX, resolutionY, BufferedImage.TYPE_INT_RGB);
+        int[] imageData = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
         int d = 0;
         for (int i = 0; i < dataSize; i++) {
-            int dot = rawImageData[i] & 0xFF | ((rawImageData[++i] & 0xFF) << 8);
+            int dot = rawImageData.get(i) & 0xFF | ((rawImageData.get(++i) & 0xFF) << 8);
 
             int color =   ((dot & 0xF800) << 8) | ((dot & 0x07C0) << 5) | ((dot & 0x001F) << 3);
 
@@ -94,7 +97,7 @@ public class PhotonFilePreview {
 
             int repeat = 1;
             if ((dot & 0x0020) == 0x0020) {
-                repeat += rawImageData[++i] & 0xFF | ((rawImageData[++i] & 0x0F) << 8);
+                repeat += rawImageData.get(++i) & 0xFF | ((rawImageData.get(++i) & 0x0F) << 8);
             }
 
             while (repeat > 0) {
@@ -102,7 +105,7 @@ public class PhotonFilePreview {
                 repeat--;
             }
         }
-
+        return image;
     }
 
     public int getResolutionX() {
@@ -113,13 +116,26 @@ public class PhotonFilePreview {
         return resolutionY;
     }
 
+    /**
+     * The preview is decoded on first use, straight into the pixels of the returned image.
+     *
+     * @return The image, or null when the preview has been unlinked
+     */
+    public synchronized BufferedImage getImage() {
+        if (image == null && rawImageData != null) {
+            image = decodeImageData();
+        }
+        return image;
+    }
+
     public int[] getImageData() {
-        return imageData;
+        BufferedImage image = getImage();
+        return image != null ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : null;
     }
 
-    public void unLink() {
+    public synchronized void unLink() {
         rawImageData = null;
-        imageData = null;
+        image = null;
     }
 
 }
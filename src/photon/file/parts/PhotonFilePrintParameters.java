@@ -24,9 +24,6 @@
 
 package photon.file.parts;
 
-import java.io.ByteArrayInputStream;
-import java.util.Arrays;
-
 public class PhotonFilePrintParameters {
     public float bottomLiftDistance = 5.0f;
     public float bottomLiftSpeed = 300.0f;
@@ -53,29 +50,28 @@ public class PhotonFilePrintParameters {
         this.bottomLayerCount = bottomLayerCount;
     }
 
-    public PhotonFilePrintParameters(int parametersPos, byte[] file) throws Exception {
-        byte[] data = Arrays.copyOfRange(file, parametersPos, parametersPos + getByteSize());
-        PhotonInputStream ds = new PhotonInputStream(new ByteArrayInputStream(data));
+    public PhotonFilePrintParameters(int parametersPos, IPhotonFileSource source) throws Exception {
+        PhotonBufferReader reader = new PhotonBufferReader(source.read(parametersPos, getByteSize()));
 
-        bottomLiftDistance = ds.readFloat();
-        bottomLiftSpeed = ds.readFloat();
+        bottomLiftDistance = reader.readFloat();
+        bottomLiftSpeed = reader.readFloat();
 
-        liftingDistance = ds.readFloat();
-        liftingSpeed = ds.readFloat();
-        retractSpeed = ds.readFloat();
+        liftingDistance = reader.readFloat();
+        liftingSpeed = reader.readFloat();
+        retractSpeed = reader.readFloat();
 
-        volumeMl = ds.readFloat();
-        weightG = ds.readFloat();
-        costDollars = ds.readFloat();
+        volumeMl = reader.readFloat();
+        weightG = reader.readFloat();
+        costDollars = reader.readFloat();
 
-        bottomLightOffDelay = ds.readFloat();
-        lightOffDelay = ds.readFloat();
-        bottomLayerCount = ds.readInt();
+        bottomLightOffDelay = reader.readFloat();
+        lightOffDelay = reader.readFloat();
+        bottomLayerCount = reader.readInt();
 
-        p1 = ds.readInt();
-        p2 = ds.readInt();
-        p3 = ds.readInt();
-        p4 = ds.readInt();
+        p1 = reader.readInt();
+        p2 = reader.readInt();
+        p3 = reader.readInt();
+        p4 = reader.readInt();
     }
 
     public void save(PhotonOutputStream os) throws Exception {
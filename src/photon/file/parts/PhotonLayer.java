@@ -24,16 +24,24 @@
 
 package photon.file.parts;
 
-import java.awt.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Hashtable;
+import java.util.Iterator;
 
 /**
  * by bn on 02/07/2018.
+ * <p/>
+ * The pixels are stored in tiles of 64 by 64 pixels, with 2 bits for each pixel and 2 longs for each row of a tile.
+ * Empty tiles are not allocated, and the tiles of a layer unpacked from a packed layer image with all pixels of one
+ * type are shared, so the memory used depends on the printed area and not on the size of the screen.
+ * <p/>
+ * The columns written in each row are tracked, so clearing the layer only resets what was used, and the islands are
+ * only looked for in the written part of each row. Layers used for calculations are taken from a small pool with
+ * acquire and given back with release.
  */
 public class PhotonLayer {
     public final static byte OFF = 0x00;
@@ -41,61 +49,256 @@ public class PhotonLayer {
     public final static byte ISLAND = 0x02;
     public final static byte CONNECTED = 0x03;
 
+    // A long filled with pixels of each type
+    private final static long[] PATTERNS = {0L, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 0xFFFFFFFFFFFFFFFFL};
+
+    private final static int TILE_SHIFT = 6;
+    private final static int TILE_MASK = (1 << TILE_SHIFT) - 1;
+    private final static int TILE_LONGS = 2 << TILE_SHIFT;
+    // Tiles with all pixels of one type, shared by the layers and copied before they are changed
+    private final static long[][] FULL_TILES = new long[4][];
+
+    static {
+        for (int type = SUPPORTED; type <= CONNECTED; type++) {
+            FULL_TILES[type] = new long[TILE_LONGS];
+            Arrays.fill(FULL_TILES[type], PATTERNS[type]);
+        }
+    }
+
+    private final static int[] NO_ISLANDS = new int[0];
+
+    // Enough for the calculation threads to each keep one layer
+    private final static int POOL_SIZE = Integer.max(4, Runtime.getRuntime().availableProcessors());
+    private final static ArrayDeque<PhotonLayer> pool = new ArrayDeque<>();
+
     private int width;
     private int height;
+    private int tilesX;
     private int islandCount = 0;
+    private int[] islandSizes = NO_ISLANDS;
+    // The runs used by reduce to find the islands, kept for the next layer
+    private PhotonLayerRuns runs;
 
-    private byte[][] iArray;
+    private long[][] tiles;
+    // Cleared tiles, used again before new tiles are allocated
+    private ArrayDeque<long[]> freeTiles = new ArrayDeque<>();
     private int[] pixels;
     private int[] rowIslands;
     private int[] rowUnsupported;
     private int[] rowSupported;
 
+    // The first and last column written in each row, and the first and last row written
+    private int[] rowFirst;
+    private int[] rowLast;
+    private int firstRow;
+    private int lastRow;
+
     public PhotonLayer(int width, int height) {
         this.width = width;
         this.height = height;
 
-        iArray = new byte[height][width];
+        tilesX = (width + TILE_MASK) >> TILE_SHIFT;
+        tiles = new long[tilesX * ((height + TILE_MASK) >> TILE_SHIFT)][];
         pixels = new int[height];
         rowIslands = new int[height];
         rowUnsupported = new int[height];
         rowSupported = new int[height];
+        rowFirst = new int[height];
+        rowLast = new int[height];
+        Arrays.fill(rowFirst, width);
+        Arrays.fill(rowLast, -1);
+        firstRow = height;
+        lastRow = -1;
+    }
 
+    /**
+     * Get a cleared layer from the pool, or a new layer when there is none of the same size.
+     */
+    public static PhotonLayer acquire(int width, int height) {
+        synchronized (pool) {
+            Iterator<PhotonLayer> iterator = pool.iterator();
+            while (iterator.hasNext()) {
+                PhotonLayer layer = iterator.next();
+                if (layer.width == width && layer.height == height) {
+                    iterator.remove();
+                    return layer;
+                }
+            }
+        }
+        return new PhotonLayer(width, height);
+    }
+
+    /**
+     * Give a layer from acquire back to the pool, the layer must not be used after this.
+     */
+    public static void release(PhotonLayer layer) {
+        layer.clear();
+        synchronized (pool) {
+            if (pool.size() >= POOL_SIZE) {
+                pool.removeFirst();
+            }
+            pool.addLast(layer);
+        }
     }
 
     public void clear() {
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                iArray[y][x] = OFF;
+        int firstColumn = width;
+        int lastColumn = -1;
+        for (int y = firstRow; y <= lastRow; y++) {
+            if (rowFirst[y] <= rowLast[y]) {
+                firstColumn = Integer.min(firstColumn, rowFirst[y]);
+                lastColumn = Integer.max(lastColumn, rowLast[y]);
+                pixels[y] = 0;
+                rowIslands[y] = 0;
+                rowUnsupported[y] = 0;
+                rowSupported[y] = 0;
+                rowFirst[y] = width;
+                rowLast[y] = -1;
+            }
+        }
+        if (firstColumn <= lastColumn) {
+            for (int tileY = firstRow >> TILE_SHIFT; tileY <= lastRow >> TILE_SHIFT; tileY++) {
+                for (int tileX = firstColumn >> TILE_SHIFT; tileX <= lastColumn >> TILE_SHIFT; tileX++) {
+                    int tileNo = tileY * tilesX + tileX;
+                    long[] tile = tiles[tileNo];
+                    if (tile != null) {
+                        freeTile(tile);
+                        tiles[tileNo] = null;
+                    }
+                }
+            }
+        }
+        firstRow = height;
+        lastRow = -1;
+        islandCount = 0;
+        islandSizes = NO_ISLANDS;
+    }
+
+    private void freeTile(long[] tile) {
+        if (!isShared(tile)) {
+            Arrays.fill(tile, 0L);
+            freeTiles.add(tile);
+        }
+    }
+
+    private static boolean isShared(long[] tile) {
+        return tile == FULL_TILES[SUPPORTED] || tile == FULL_TILES[ISLAND] || tile == FULL_TILES[CONNECTED];
+    }
+
+    /**
+     * Get the long with the 32 pixels of row y from x = 32 * index.
+     */
+    private long word(int index, int y) {
+        long[] tile = tiles[(y >> TILE_SHIFT) * tilesX + (index >> 1)];
+        return tile == null ? 0L : tile[((y & TILE_MASK) << 1) | (index & 1)];
+    }
+
+    private byte value(int x, int y) {
+        return (byte) ((word(x >> 5, y) >>> ((x & 31) << 1)) & 0x03);
+    }
+
+    private void set(int x, int y, byte value) {
+        if (x < rowFirst[y]) {
+            rowFirst[y] = x;
+        }
+        if (x > rowLast[y]) {
+            rowLast[y] = x;
+        }
+        if (y < firstRow) {
+            firstRow = y;
+        }
+        if (y > lastRow) {
+            lastRow = y;
+        }
+        int tileNo = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        long[] tile = tiles[tileNo];
+        if (tile == null || isShared(tile)) {
+            if (tile == null ? value == OFF : tile == FULL_TILES[value]) {
+                return;
+            }
+            long[] newTile = freeTiles.poll();
+            if (newTile == null) {
+                newTile = new long[TILE_LONGS];
             }
+            if (tile != null) {
+                System.arraycopy(tile, 0, newTile, 0, TILE_LONGS);
+            }
+            tile = newTile;
+            tiles[tileNo] = tile;
         }
-        Arrays.fill(pixels, 0);
-        Arrays.fill(rowIslands, 0);
-        Arrays.fill(rowUnsupported, 0);
-        Arrays.fill(rowSupported, 0);
+        int index = ((y & TILE_MASK) << 1) | ((x >> 5) & 1);
+        int shift = (x & 31) << 1;
+        tile[index] = (tile[index] & ~(0x03L << shift)) | ((long) value << shift);
+    }
+
+    /**
+     * Share the tiles with all pixels of one type, and free the tiles without pixels.
+     */
+    private void shareTiles() {
+        for (int tileNo = 0; tileNo < tiles.length; tileNo++) {
+            long[] tile = tiles[tileNo];
+            if (tile != null && !isShared(tile)) {
+                long first = tile[0];
+                int type = (int) (first & 0x03);
+                boolean same = first == PATTERNS[type];
+                for (int i = 1; same && i < TILE_LONGS; i++) {
+                    same = tile[i] == first;
+                }
+                if (same) {
+                    freeTile(tile);
+                    tiles[tileNo] = FULL_TILES[type];
+                }
+            }
+        }
+    }
+
+    /**
+     * Find where the run of pixels with the same value as the pixel at x ends, comparing a long of pixels at a time.
+     */
+    private int runEnd(int x, int y) {
+        int index = x >> 5;
+        long pattern = PATTERNS[value(x, y)];
+        long diff = (word(index, y) ^ pattern) >>> ((x & 31) << 1);
+        while (diff == 0) {
+            x = (x | 31) + 1;
+            if (x >= width) {
+                return width;
+            }
+            index++;
+            diff = word(index, y) ^ pattern;
+        }
+        return Integer.min(width, x + (Long.numberOfTrailingZeros(diff) >> 1));
+    }
+
+    /**
+     * True when there are no island pixels in the long holding the pixel at x.
+     */
+    private boolean noIslands(int x, int y) {
+        long word = word(x >> 5, y);
+        return ((word >>> 1) & ~word & PATTERNS[SUPPORTED]) == 0;
     }
 
     public void supported(int x, int y) {
-        iArray[y][x] = SUPPORTED;
+        set(x, y, SUPPORTED);
         rowSupported[y]++;
         pixels[y]++;
     }
 
     public void unSupported(int x, int y) {
-        iArray[y][x] = CONNECTED;
+        set(x, y, CONNECTED);
         rowUnsupported[y]++;
         pixels[y]++;
     }
 
     public void island(int x, int y) {
-        iArray[y][x] = ISLAND;
+        set(x, y, ISLAND);
         rowIslands[y]++;
         islandCount++;
         pixels[y]++;
     }
 
     public void remove(int x, int y, byte type) {
-        iArray[y][x] = OFF;
+        set(x, y, OFF);
         switch (type) {
             case SUPPORTED:
                 rowUnsupported[y]--;
@@ -112,87 +315,69 @@ public class PhotonLayer {
     }
 
 
+    /**
+     * Islands that are connected to a supported pixel, directly or through other island pixels, are CONNECTED. The
+     * written part of the layer is read as runs of pixels, and the islands are found in a single pass with union find
+     * on the runs, see PhotonLayerRuns.
+     */
     public void reduce() {
-        // Double reduce to handle single line connections.
-        for (int i = 0; i < 2; i++) {
-            if (islandCount > 0) {
-                for (int y = 0; y < height; y++) {
-                    if (rowIslands[y] > 0) {
-                        for (int x = 0; x < width; x++) {
-                            if (iArray[y][x] == ISLAND) {
-                                if (connected(x, y)) {
-                                    makeConnected(x, y);
-                                    checkUp(x, y);
-                                    if (rowIslands[y] == 0) {
-                                        break;
-                                    }
-                                }
+        islandSizes = NO_ISLANDS;
+        if (islandCount > 0) {
+            if (runs == null) {
+                runs = new PhotonLayerRuns(width, height);
+            }
+            runs.clear();
+            for (int y = firstRow; y <= lastRow; y++) {
+                if (pixels[y] > 0) {
+                    for (int x = rowFirst[y]; x <= rowLast[y]; ) {
+                        int end = runEnd(x, y);
+                        byte type = value(x, y);
+                        if (type != OFF) {
+                            runs.add(y, x, end, type);
+                        }
+                        x = end;
+                    }
+                }
+            }
+            runs.reduce();
+            for (int y = firstRow; y <= lastRow; y++) {
+                if (rowIslands[y] > 0) {
+                    for (int i = runs.getRowStart(y); i < runs.getRowStart(y + 1); i++) {
+                        if (runs.getType(i) == CONNECTED && value(runs.getStart(i), y) == ISLAND) {
+                            for (int x = runs.getStart(i); x < runs.getEnd(i); x++) {
+                                makeConnected(x, y);
                             }
                         }
                     }
                 }
             }
+            islandSizes = runs.getIslandSizes();
         }
     }
 
-    private void checkUp(int x, int y) {
-        if (y > 0 && rowIslands[y - 1] > 0 && iArray[y - 1][x] == ISLAND) {
-            makeConnected(x, y - 1);
-            checkUp(x, y - 1);
-        }
-        if (x > 0 && rowIslands[y] > 0 && iArray[y][x - 1] == ISLAND) {
-            makeConnected(x - 1, y);
-            checkBackUp(x - 1, y);
-        }
-        if (x < (width-1) && rowIslands[y] > 0 && iArray[y][x + 1] == ISLAND) {
-            makeConnected(x + 1, y);
-            checkFrontUp(x + 1, y);
-        }
-    }
-
-    private void checkBackUp(int x, int y) {
-        if (y > 0 && rowIslands[y - 1] > 0 && iArray[y - 1][x] == ISLAND) {
-            makeConnected(x, y - 1);
-            checkBackUp(x, y - 1);
-        }
-        if (x > 0 && rowIslands[y] > 0 && iArray[y][x - 1] == ISLAND) {
-            makeConnected(x - 1, y);
-            checkBackUp(x - 1, y);
-        }
-    }
-
-    private void checkFrontUp(int x, int y) {
-        if (y > 0 && rowIslands[y - 1] > 0 && iArray[y - 1][x] == ISLAND) {
-            makeConnected(x, y - 1);
-            checkFrontUp(x, y - 1);
-        }
-        if (x < (width-1) && rowIslands[y] > 0 && iArray[y][x + 1] == ISLAND) {
-            makeConnected(x + 1, y);
-            checkFrontUp(x + 1, y);
-        }
+    /**
+     * Get the number of pixels in each island left by reduce, in the order the islands are found from the top left.
+     */
+    public int[] getIslandSizes() {
+        return islandSizes;
     }
 
     private void makeConnected(int x, int y) {
-        iArray[y][x] = CONNECTED;
+        set(x, y, CONNECTED);
         rowSupported[y]++;
         rowIslands[y]--;
         islandCount--;
     }
 
-    private boolean connected(int x, int y) {
-        return x > 0 && (iArray[y][x - 1] & 0x01) == SUPPORTED
-                || x < (width - 1) && (iArray[y][x + 1] & 0x01) == SUPPORTED
-                || y > 0 && (iArray[y - 1][x] & 0x01) == SUPPORTED
-                || (y < (height - 1) && (iArray[y + 1][x] & 0x01) == SUPPORTED);
-    }
-
     public int setIslands(ArrayList<BitSet> islandRows) {
         int islands = 0;
         for (int y = 0; y < height; y++) {
             BitSet bitSet = new BitSet();
             if (rowIslands[y] > 0) {
-                for (int x = 0; x < width; x++) {
-                    if (iArray[y][x] == ISLAND) {
+                for (int x = rowFirst[y] & ~31; x <= rowLast[y]; x++) {
+                    if ((x & 31) == 0 && noIslands(x, y)) {
+                        x += 31;
+                    } else if (value(x, y) == ISLAND) {
                         bitSet.set(x);
                     }
                 }
@@ -204,11 +389,15 @@ public class PhotonLayer {
     }
 
     public void unLink() {
-        iArray = null;
+        tiles = null;
+        freeTiles = null;
         pixels = null;
         rowIslands = null;
         rowUnsupported = null;
         rowSupported = null;
+        rowFirst = null;
+        rowLast = null;
+        runs = null;
     }
 
     public byte[] packLayerImage() throws IOException {
@@ -217,22 +406,10 @@ public class PhotonLayer {
                 if (pixels[y] == 0) {
                     add(baos, OFF, width);
                 } else {
-                    byte current = OFF;
-                    int length = 0;
-                    for (int x = 0; x < width; x++) {
-                        byte next = iArray[y][x];
-                        if (next != current) {
-                            if (length > 0) {
-                                add(baos, current, length);
-                            }
-                            current = next;
-                            length = 1;
-                        } else {
-                            length++;
-                        }
-                    }
-                    if (length > 0) {
-                        add(baos, current, length);
+                    for (int x = 0; x < width; ) {
+                        int end = runEnd(x, y);
+                        add(baos, value(x, y), end - x);
+                        x = end;
                     }
                 }
             }
@@ -275,7 +452,7 @@ public class PhotonLayer {
                 x = 0;
             }
         }
-
+        shareTiles();
     }
 
     private void add(ByteArrayOutputStream baos, byte current, int length) throws IOException {
@@ -291,64 +468,18 @@ public class PhotonLayer {
         }
     }
 
-    /**
-     * Get a layer image for drawing.
-     * <p/>
-     * This will decode the RLE packed layer information and return a list of rows, with color and length information
-     *
-     * @param packedLayerImage The packed layer image information
-     * @param width            The width of the current layer, used to change rows
-     * @return A list with the
-     */
-    public static ArrayList<PhotonRow> getRows(byte[] packedLayerImage, int width, boolean isCalculated) {
-        Hashtable<Byte, Color> colors = new Hashtable<>();
-        colors.put(OFF, Color.black);
-        if (isCalculated) {
-            colors.put(SUPPORTED, Color.decode("#008800"));
-        } else {
-            colors.put(SUPPORTED, Color.decode("#000088"));
-        }
-        colors.put(CONNECTED, Color.decode("#FFFF00"));
-        colors.put(ISLAND, Color.decode("#FF0000"));
-        ArrayList<PhotonRow> rows = new ArrayList<>();
-        int resolutionX = width - 1;
-        PhotonRow currentRow = new PhotonRow();
-        rows.add(currentRow);
-        int x = 0;
-        if (packedLayerImage!=null) { // when user tries to show a layer before its calculated
-            for (int i = 0; i < packedLayerImage.length; i++) {
-                byte rle = packedLayerImage[i];
-                byte colorCode = (byte) ((rle & 0x60) >> 5);
-                Color color = colors.get(colorCode);
-                boolean extended = (rle & 0x80) == 0x80;
-                int length = rle & 0x1F;
-                if (extended) {
-                    i++;
-                    length = (length << 8) | packedLayerImage[i] & 0x00ff;
-                }
-                currentRow.lines.add(new PhotonLine(color, length));
-                x += length;
-
-                if (x >= resolutionX) {
-                    currentRow = new PhotonRow();
-                    rows.add(currentRow);
-                    x = 0;
-                }
-            }
-        }
-        return rows;
-    }
-
     public int fixlayer() {
         PhotonMatix photonMatix = new PhotonMatix();
         ArrayList<PhotonDot> dots = new ArrayList<>();
         if (islandCount > 0) {
-            for (int y = 0; y < height; y++) {
+            for (int y = firstRow; y <= lastRow; y++) {
                 if (rowIslands[y] > 0) {
-                    for (int x = 0; x < width; x++) {
-                        if (iArray[y][x] == ISLAND) {
+                    for (int x = rowFirst[y] & ~31; x <= rowLast[y]; x++) {
+                        if ((x & 31) == 0 && noIslands(x, y)) {
+                            x += 31;
+                        } else if (value(x, y) == ISLAND) {
                             photonMatix.clear();
-                            int blanks = photonMatix.set(x, y, iArray, width, height);
+                            int blanks = photonMatix.set(x, y, this, width, height);
                             if (blanks>0) { // one or more neighbour pixels are OFF
                                 photonMatix.calc();
                                 photonMatix.level();
@@ -358,7 +489,7 @@ public class PhotonLayer {
                                     for (int rx = 0; rx < 3; rx++) {
                                         int iy = y-1+ry;
                                         int ix = x-1+rx;
-                                        if (iArray[iy][ix] == OFF) {
+                                        if (iy >= 0 && iy < height && ix >= 0 && ix < width && value(ix, iy) == OFF) {
                                             if (photonMatix.calcMatrix[1+ry][1+rx]>3) {
                                                 dots.add(new PhotonDot(ix, iy));
                                             }
@@ -383,22 +514,10 @@ public class PhotonLayer {
                 if (pixels[y] == 0) {
                     addPhotonRLE(baos, true, width);
                 } else {
-                    byte current = OFF;
-                    int length = 0;
-                    for (int x = 0; x < width; x++) {
-                        byte next = iArray[y][x];
-                        if (next != current) {
-                            if (length > 0) {
-                                addPhotonRLE(baos, current==OFF, length);
-                            }
-                            current = next;
-                            length = 1;
-                        } else {
-                            length++;
-                        }
-                    }
-                    if (length > 0) {
-                        addPhotonRLE(baos, current==OFF, length);
+                    for (int x = 0; x < width; ) {
+                        int end = runEnd(x, y);
+                        addPhotonRLE(baos, value(x, y) == OFF, end - x);
+                        x = end;
                     }
                 }
             }
@@ -407,6 +526,29 @@ public class PhotonLayer {
         }
     }
 
+    /**
+     * Encode the photon file image data from a packed layer image, gives the same result as packImageData on the
+     * unpacked layer without unpacking it.
+     */
+    public static byte[] packImageData(byte[] packedLayerImage) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(packedLayerImage.length + packedLayerImage.length / 2);
+        for (int i = 0; i < packedLayerImage.length; i++) {
+            byte rle = packedLayerImage[i];
+            boolean off = ((rle & 0x60) >> 5) == OFF;
+            int length = rle & 0x1F;
+            if ((rle & 0x80) == 0x80) {
+                i++;
+                length = (length << 8) | packedLayerImage[i] & 0x00ff;
+            }
+            while (length > 0) {
+                int lineLength = Integer.min(length, 125);
+                baos.write((off ? 0x00 : 0x80) | (lineLength & 0x7f));
+                length -= lineLength;
+            }
+        }
+        return baos.toByteArray();
+    }
+
     private void addPhotonRLE(ByteArrayOutputStream baos, boolean off, int length) throws IOException {
         byte[] data = new byte[1];
         while (length>0) {
@@ -418,7 +560,10 @@ public class PhotonLayer {
     }
 
     public byte get(int x, int y) {
-        return iArray[y][x];
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return OFF;
+        }
+        return value(x, y);
     }
 
 }
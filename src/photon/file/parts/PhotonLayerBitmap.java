@@ -0,0 +1,198 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The lit pixels of a layer decoded from the photon file image data into a flat bitmap, with each row starting in a new long.
+ * <p/>
+ * The bitmap is reused for the next layer, so decoding all layers of a file does not allocate. The bounding box of the
+ * lit pixels is found while decoding, so the layer can be processed without looking at the empty space around it.
+ */
+public class PhotonLayerBitmap {
+    private int width;
+    private int height;
+    private int stride;
+    private long[] bits;
+
+    // The number of rows the image data spans, as counted by PhotonFileLayer.unpackImage
+    private int rows;
+    // The bounding box of the lit pixels, only the box is cleared before decoding the next layer
+    private int firstRow;
+    private int lastRow;
+    private int firstColumn;
+    private int lastColumn;
+
+    public PhotonLayerBitmap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        stride = (width + 63) >> 6;
+        bits = new long[height * stride];
+        firstRow = height;
+        lastRow = -1;
+        firstColumn = width;
+        lastColumn = -1;
+    }
+
+    private void clear() {
+        for (int y = firstRow; y <= lastRow; y++) {
+            Arrays.fill(bits, y * stride + (firstColumn >> 6), y * stride + (lastColumn >> 6) + 1, 0L);
+        }
+        firstRow = height;
+        lastRow = -1;
+        firstColumn = width;
+        lastColumn = -1;
+        rows = 1;
+    }
+
+    private void set(int y, int from, int to) {
+        to = Integer.min(to, width);
+        if (y >= height || from >= to) {
+            return;
+        }
+        firstRow = Integer.min(firstRow, y);
+        lastRow = Integer.max(lastRow, y);
+        firstColumn = Integer.min(firstColumn, from);
+        lastColumn = Integer.max(lastColumn, to - 1);
+        int row = y * stride;
+        int fromWord = from >> 6;
+        int toWord = (to - 1) >> 6;
+        long fromMask = -1L << from;
+        long toMask = -1L >>> -to;
+        if (fromWord == toWord) {
+            bits[row + fromWord] |= fromMask & toMask;
+        } else {
+            bits[row + fromWord] |= fromMask;
+            for (int i = fromWord + 1; i < toWord; i++) {
+                bits[row + i] = -1L;
+            }
+            bits[row + toWord] |= toMask;
+        }
+    }
+
+    /**
+     * Decode the photon file image data, the rows are split the same way as PhotonFileLayer.unpackImage does.
+     *
+     * @return The number of lit pixels
+     */
+    public long decode(ByteBuffer imageData) {
+        clear();
+        long pixels = 0;
+        int resolutionX = width - 1;
+        int y = 0;
+        int x = 0;
+        for (int i = 0; i < imageData.limit(); i++) {
+            byte rle = imageData.get(i);
+            int length = rle & 0x7F;
+            boolean color = (rle & 0x80) == 0x80;
+            if (color) {
+                pixels += length;
+            }
+            int endPosition = x + (length - 1);
+            int lineEnd = Integer.min(endPosition, resolutionX);
+            if (color) {
+                set(y, x, 1 + lineEnd);
+            }
+            if (endPosition > resolutionX) {
+                y++;
+                rows++;
+                lineEnd = endPosition - (resolutionX + 1);
+                if (color) {
+                    set(y, 0, 1 + lineEnd);
+                }
+            }
+            x = lineEnd + 1;
+            if (x > resolutionX) {
+                y++;
+                rows++;
+                x = 0;
+            }
+        }
+        return pixels;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * True when no pixels are lit, the bounding box is empty.
+     */
+    public boolean isEmpty() {
+        return lastRow < 0;
+    }
+
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    public int getLastRow() {
+        return lastRow;
+    }
+
+    public int getFirstColumn() {
+        return firstColumn;
+    }
+
+    public int getLastColumn() {
+        return lastColumn;
+    }
+
+    /**
+     * Get 64 pixels of a row, the lowest bit is the pixel at x = 64 * word.
+     */
+    public long getWord(int y, int word) {
+        return bits[y * stride + word];
+    }
+
+    public boolean isEmpty(int y) {
+        return y >= height || y < firstRow || y > lastRow || nextSetBit(y, 0) < 0;
+    }
+
+    /**
+     * Find the first pixel set in the row from x, or -1 when there is none, like BitSet.nextSetBit.
+     */
+    public int nextSetBit(int y, int x) {
+        if (y >= height || x >= width) {
+            return -1;
+        }
+        int row = y * stride;
+        int word = x >> 6;
+        long pixels = bits[row + word] & (-1L << x);
+        while (pixels == 0) {
+            if (++word == stride) {
+                return -1;
+            }
+            pixels = bits[row + word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(pixels);
+    }
+}
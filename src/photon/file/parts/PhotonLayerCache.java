@@ -0,0 +1,223 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps track of the layer data held on the heap, and evicts the least recently used layers when the size limit is reached.
+ * <p/>
+ * With a cold size the cache has two tiers. Layers evicted from the hot tier are compressed in the background and kept
+ * in the cold tier, where they are inflated again when used. Layers are only evicted completely when the cold tier is full.
+ * <p/>
+ * Modified layers can not be read again from the file. When they are evicted their packed layer image stays in the layer
+ * store, or is deflated and counted in the kept size.
+ */
+public class PhotonLayerCache {
+    private long maxSize;
+    private long coldMaxSize;
+    private long size;
+    private long coldSize;
+    private long keptSize;
+    private long hits;
+    private long misses;
+    private LinkedHashMap<PhotonLayerData, Long> layers = new LinkedHashMap<>(1024, 0.75f, true);
+    private LinkedHashMap<PhotonLayerData, Long> coldLayers = new LinkedHashMap<>(1024);
+    // Evicted layers that still have data on the heap
+    private LinkedHashMap<PhotonLayerData, Long> keptLayers = new LinkedHashMap<>(1024);
+    private ExecutorService compressor;
+
+    public PhotonLayerCache(long maxSize) {
+        this(maxSize, 0);
+    }
+
+    public PhotonLayerCache(long maxSize, long coldMaxSize) {
+        this.maxSize = maxSize;
+        this.coldMaxSize = coldMaxSize;
+        if (coldMaxSize > 0) {
+            compressor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Photon layer compressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Register that a layer was used, and update its size.
+     */
+    synchronized void use(PhotonLayerData layer) {
+        Long cold = coldLayers.remove(layer);
+        if (cold != null) {
+            coldSize -= cold;
+        }
+        Long kept = keptLayers.remove(layer);
+        if (kept != null) {
+            keptSize -= kept;
+        }
+        long layerSize = layer.getCacheSize();
+        Long previous = layers.put(layer, layerSize);
+        size += layerSize;
+        if (previous != null) {
+            size -= previous;
+        }
+        evict(layer);
+    }
+
+    /**
+     * Count an access to the layer data from outside the layer, before it is used. A layer in the hot tier is a hit,
+     * anything else is a miss.
+     */
+    synchronized void access(PhotonLayerData layer) {
+        if (layers.containsKey(layer)) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    synchronized void remove(PhotonLayerData layer) {
+        Long previous = layers.remove(layer);
+        if (previous != null) {
+            size -= previous;
+        }
+        previous = coldLayers.remove(layer);
+        if (previous != null) {
+            coldSize -= previous;
+        }
+        previous = keptLayers.remove(layer);
+        if (previous != null) {
+            keptSize -= previous;
+        }
+    }
+
+    public synchronized void clear() {
+        layers.clear();
+        coldLayers.clear();
+        keptLayers.clear();
+        size = 0;
+        coldSize = 0;
+        keptSize = 0;
+        if (compressor != null) {
+            compressor.shutdownNow();
+        }
+    }
+
+    private void evict(PhotonLayerData current) {
+        Iterator<Map.Entry<PhotonLayerData, Long>> iterator = layers.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<PhotonLayerData, Long> entry = iterator.next();
+            if (entry.getKey() != current) {
+                iterator.remove();
+                size -= entry.getValue();
+                if (compressor != null && !compressor.isShutdown()) {
+                    // Counted with the uncompressed size until it is compressed
+                    coldLayers.put(entry.getKey(), entry.getValue());
+                    coldSize += entry.getValue();
+                    PhotonLayerData layer = entry.getKey();
+                    compressor.execute(() -> compressed(layer, layer.compress()));
+                } else {
+                    keep(entry.getKey(), entry.getKey().evict());
+                }
+            }
+        }
+        evictCold();
+    }
+
+    private synchronized void compressed(PhotonLayerData layer, long compressedSize) {
+        Long previous = coldLayers.get(layer);
+        if (previous != null) {
+            if (compressedSize < 0) {
+                // Nothing to compress, or the layer changed, evict it as a single tier cache does
+                coldLayers.remove(layer);
+                coldSize -= previous;
+                keep(layer, layer.evict());
+            } else {
+                coldLayers.put(layer, compressedSize);
+                coldSize += compressedSize - previous;
+                evictCold();
+            }
+        }
+    }
+
+    private void evictCold() {
+        Iterator<Map.Entry<PhotonLayerData, Long>> iterator = coldLayers.entrySet().iterator();
+        while (coldSize > coldMaxSize && iterator.hasNext()) {
+            Map.Entry<PhotonLayerData, Long> entry = iterator.next();
+            iterator.remove();
+            coldSize -= entry.getValue();
+            keep(entry.getKey(), entry.getKey().evict());
+        }
+    }
+
+    private void keep(PhotonLayerData layer, long layerSize) {
+        if (layerSize > 0) {
+            keptLayers.put(layer, layerSize);
+            keptSize += layerSize;
+        }
+    }
+
+    /**
+     * The size of the layer data in the hot tier.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * The size of the compressed layer data in the cold tier.
+     */
+    public synchronized long getColdSize() {
+        return coldSize;
+    }
+
+    /**
+     * The size of the data evicted layers still have on the heap, the deflated images of modified layers and the island
+     * rows of layers in a layer store.
+     */
+    public synchronized long getKeptSize() {
+        return keptSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getColdMaxSize() {
+        return coldMaxSize;
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The data of a layer, the image data, the packed layer image and the islands found in it, and where that data is
+ * kept: on the heap, in the source file, in the layer store or compressed in the cold tier of the layer cache.
+ * <p/>
+ * All state is guarded by the lock of this object. The layer cache is never called while holding it, as the cache
+ * calls back into the data while holding its own lock.
+ */
+class PhotonLayerData {
+    private final PhotonFileLayer layer;
+
+    private ByteBuffer imageData;
+    private byte[] packedLayerImage;
+
+    private ArrayList<BitSet> islandRows;
+    private int isLandsCount;
+    // The number of pixels in each island
+    private int[] islandSizes;
+
+    // Lazy loaded layers fetch the image data from the source, and register their heap use in the cache
+    private IPhotonFileSource source;
+    private long sourceAddress;
+    private int sourceSize;
+    private PhotonLayerCache layerCache;
+    private boolean modified;
+    private boolean evicted;
+    // Saved layers encode their image data from the packed layer image when it is needed
+    private boolean encode;
+    private long dataHash;
+    private boolean dataHashed;
+    // With a layer store the image data and packed layer image are kept in the store, and only the handles on the heap
+    private IPhotonLayerStore layerStore;
+    private long imageHandle = IPhotonLayerStore.NONE;
+    private long packedHandle = IPhotonLayerStore.NONE;
+    // In the cold tier of the layer cache, and for evicted modified layers, the packed layer image is deflated, the
+    // island rows are kept as they are
+    private byte[] compressedImage;
+    private int packedSize;
+
+    PhotonLayerData(PhotonFileLayer layer, IPhotonLayerStore layerStore) {
+        this.layer = layer;
+        this.layerStore = layerStore;
+    }
+
+    synchronized IPhotonLayerStore getLayerStore() {
+        return layerStore;
+    }
+
+    /**
+     * Link the data to the source. Without a layer cache the image data is read right away.
+     *
+     * @return The image data, or null when it is read from the source when it is used
+     */
+    synchronized ByteBuffer load(IPhotonFileSource source, long address, int size, PhotonLayerCache layerCache) throws IOException {
+        this.source = source;
+        this.sourceAddress = address; // the data address of the layer changes when the file is saved
+        this.sourceSize = size;
+        if (layerCache != null) {
+            this.layerCache = layerCache;
+            return null;
+        }
+        ByteBuffer data = storeImageData(source.read(address, size));
+        setDataHash(data);
+        return data;
+    }
+
+    ByteBuffer imageData() {
+        ByteBuffer data;
+        synchronized (this) {
+            data = imageData;
+            if (data == null && encode) {
+                data = encodeImageData();
+            } else if (data == null && source != null) {
+                try {
+                    data = source.read(sourceAddress, sourceSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                imageData = data;
+            }
+        }
+        used();
+        return data;
+    }
+
+    /**
+     * Encode the image data of a saved layer ahead of writing it.
+     *
+     * @return The encoded image data, or null when there was nothing to encode
+     */
+    ByteBuffer encode() {
+        synchronized (this) {
+            if (!encode) {
+                return null;
+            }
+        }
+        return imageData();
+    }
+
+    private ByteBuffer encodeImageData() {
+        ByteBuffer data = storeImageData(ByteBuffer.wrap(PhotonLayer.packImageData(packedData())));
+        encode = false;
+        setDataHash(data);
+        return data;
+    }
+
+    /**
+     * Keep the image data, image data on the heap is copied to the layer store when there is one.
+     */
+    private ByteBuffer storeImageData(ByteBuffer data) {
+        removeImageData();
+        if (layerStore != null && !data.isDirect()) {
+            try {
+                imageHandle = layerStore.put(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            data = layerStore.get(imageHandle);
+        }
+        imageData = data;
+        return data;
+    }
+
+    private void removeImageData() {
+        imageData = null;
+        if (imageHandle != IPhotonLayerStore.NONE) {
+            layerStore.remove(imageHandle);
+            imageHandle = IPhotonLayerStore.NONE;
+        }
+    }
+
+    /**
+     * The 64 bit XXH64 hash of the image data, computed when the data is read or encoded, or on first use when lazy loaded.
+     */
+    long getDataHash() {
+        synchronized (this) {
+            if (dataHashed) {
+                return dataHash;
+            }
+        }
+        ByteBuffer data = imageData();
+        long hash = PhotonHash.hash(data);
+        synchronized (this) {
+            if (dataHashed) {
+                return dataHash;
+            }
+            if (imageData == data) {
+                // Only keep the hash when the image data was not replaced meanwhile
+                dataHash = hash;
+                dataHashed = true;
+            }
+        }
+        return hash;
+    }
+
+    private void setDataHash(ByteBuffer data) {
+        dataHash = PhotonHash.hash(data);
+        dataHashed = true;
+    }
+
+    void save(PhotonOutputStream os) throws Exception {
+        IPhotonFileSource unloaded = null;
+        long address;
+        int size;
+        synchronized (this) {
+            if (imageData == null && !encode && source != null) {
+                unloaded = source;
+            }
+            address = sourceAddress;
+            size = sourceSize;
+        }
+        if (unloaded != null) {
+            // Not loaded, copy the data straight from the source file
+            os.write(unloaded, address, size);
+        } else {
+            os.write(imageData());
+        }
+    }
+
+    /**
+     * True when the data is unchanged and stored in the source at the address.
+     */
+    synchronized boolean isStoredAt(IPhotonFileSource source, long address) {
+        return !modified && source != null && this.source == source && sourceAddress == address;
+    }
+
+    /**
+     * Get the packed layer image as it is, from the layer store when it is stored there, or inflated when it is deflated.
+     */
+    private byte[] packedData() {
+        if (packedHandle != IPhotonLayerStore.NONE) {
+            ByteBuffer data = layerStore.get(packedHandle);
+            byte[] packed = new byte[data.limit()];
+            data.get(packed);
+            return packed;
+        }
+        if (packedLayerImage == null && compressedImage != null) {
+            packedLayerImage = inflate(compressedImage, packedSize);
+            compressedImage = null;
+        }
+        return packedLayerImage;
+    }
+
+    /**
+     * Get the packed layer image, inflated from the cold tier or calculated again when the layer was evicted.
+     */
+    byte[] packedLayerImage() {
+        byte[] packed;
+        boolean rebuild;
+        synchronized (this) {
+            packed = packedData();
+            rebuild = packed == null && evicted;
+        }
+        if (rebuild) {
+            // Outside the lock, as the layer is calculated against the previous layer
+            packed = layer.recalculate(new ArrayList<>());
+        }
+        used();
+        return packed;
+    }
+
+    void setPackedLayerImage(byte[] packedLayerImage) {
+        setPackedLayerImage(packedLayerImage, null, 0, null);
+    }
+
+    /**
+     * Set the packed layer image and the islands found in it in one step, so an eviction can not come in between.
+     *
+     * @param islandRows The island rows of the layer image, or null to keep the islands of the layer
+     */
+    void setPackedLayerImage(byte[] packedLayerImage, ArrayList<BitSet> islandRows, int isLandsCount, int[] islandSizes) {
+        synchronized (this) {
+            if (encode && imageData == null) {
+                // The image data is encoded from the packed layer image as it was saved
+                encodeImageData();
+            }
+            storePackedLayerImage(packedLayerImage, islandRows, isLandsCount, islandSizes);
+        }
+        used();
+    }
+
+    /**
+     * Replace the layer image with an edited one, the image data is encoded from it when it is needed.
+     */
+    void replace(byte[] packedLayerImage, ArrayList<BitSet> islandRows, int isLandsCount, int[] islandSizes) {
+        synchronized (this) {
+            modified = true;
+            removeImageData();
+            dataHashed = false;
+            storePackedLayerImage(packedLayerImage, islandRows, isLandsCount, islandSizes);
+            encode = true;
+        }
+        used();
+    }
+
+    private void storePackedLayerImage(byte[] packedLayerImage, ArrayList<BitSet> islandRows, int isLandsCount, int[] islandSizes) {
+        if (islandRows != null) {
+            setIslands(islandRows, isLandsCount, islandSizes);
+        }
+        if (packedHandle != IPhotonLayerStore.NONE) {
+            layerStore.remove(packedHandle);
+            packedHandle = IPhotonLayerStore.NONE;
+        }
+        compressedImage = null;
+        if (layerStore != null && packedLayerImage != null) {
+            try {
+                packedHandle = layerStore.put(ByteBuffer.wrap(packedLayerImage));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.packedLayerImage = null;
+            if (this.isLandsCount == 0 && this.islandRows != null) {
+                // Keep no rows for layers without islands, they are all empty
+                this.islandRows = new ArrayList<>();
+            }
+        } else {
+            this.packedLayerImage = packedLayerImage;
+        }
+        evicted = false;
+    }
+
+    synchronized void setIslands(ArrayList<BitSet> islandRows, int isLandsCount, int[] islandSizes) {
+        this.islandRows = islandRows;
+        this.isLandsCount = isLandsCount;
+        this.islandSizes = islandSizes;
+    }
+
+    /**
+     * Get the island rows, a calculated layer that was evicted is calculated again.
+     */
+    ArrayList<BitSet> getIslandRows() {
+        accessed();
+        synchronized (this) {
+            if (islandRows != null || !evicted || !layer.isCalculated) {
+                return islandRows;
+            }
+        }
+        // Return the rows found when calculating again, as the layer can be evicted again meanwhile
+        ArrayList<BitSet> rows = new ArrayList<>();
+        layer.recalculate(rows);
+        return rows;
+    }
+
+    synchronized int getIsLandsCount() {
+        return isLandsCount;
+    }
+
+    synchronized int[] getIslandSizes() {
+        return islandSizes;
+    }
+
+    /**
+     * Deflate the packed layer image for the cold tier of the layer cache. The image data is dropped when it can be
+     * read again from the source, or encoded again from the packed layer image of a modified layer.
+     *
+     * @return The size of the compressed layer, or -1 when there was nothing to compress
+     */
+    long compress() {
+        byte[] packed;
+        synchronized (this) {
+            packed = packedLayerImage;
+            if (packed == null) {
+                return -1;
+            }
+        }
+        // Deflate without holding the lock, and only keep the result when the layer image did not change meanwhile
+        byte[] compressed = deflate(packed);
+        synchronized (this) {
+            if (packedLayerImage != packed) {
+                return -1;
+            }
+            compressedImage = compressed;
+            packedSize = packed.length;
+            packedLayerImage = null;
+            if (isLandsCount == 0 && islandRows != null) {
+                // Keep no rows for layers without islands, they are all empty
+                islandRows = new ArrayList<>();
+            }
+            if (modified) {
+                removeEncodedImageData();
+            } else if (source != null && imageHandle == IPhotonLayerStore.NONE) {
+                imageData = null;
+            }
+            long size = compressed.length;
+            if (islandRows != null) {
+                size += islandRows.size() * 64L; // estimated size of a row bit set
+            }
+            return size;
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Integer.max(64, data.length / 4)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int size) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[size];
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                length += inflater.inflate(result, length, size - length);
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed layer image is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    synchronized long getCacheSize() {
+        long size = 0;
+        if (imageData != null && !imageData.isDirect()) {
+            size += imageData.capacity();
+        }
+        if (packedLayerImage != null) {
+            size += packedLayerImage.length;
+        }
+        if (compressedImage != null) {
+            size += compressedImage.length;
+        }
+        if (islandRows != null) {
+            size += islandRows.size() * 64L; // estimated size of a row bit set
+        }
+        return size;
+    }
+
+    /**
+     * Evict the layer data from the heap, it is read again from the source or calculated again when it is used. A
+     * modified layer can only be encoded again from its packed layer image, which is kept in the layer store or deflated.
+     *
+     * @return The size of the layer data still on the heap
+     */
+    long evict() {
+        synchronized (this) {
+            if (!modified) {
+                removeImageData();
+                if (packedLayerImage != null || compressedImage != null) {
+                    packedLayerImage = null;
+                    compressedImage = null;
+                    islandRows = null;
+                    evicted = true;
+                }
+                return getCacheSize();
+            }
+            removeEncodedImageData();
+        }
+        // Deflates without holding the lock, the packed layer image is kept as it is when it changed meanwhile
+        compress();
+        return getCacheSize();
+    }
+
+    /**
+     * Drop the image data of a modified layer, it is encoded again from the packed layer image when it is needed.
+     */
+    private void removeEncodedImageData() {
+        if (imageData != null) {
+            removeImageData();
+            encode = true;
+        }
+    }
+
+    private void used() {
+        PhotonLayerCache cache;
+        synchronized (this) {
+            cache = layerCache;
+        }
+        if (cache != null) {
+            cache.use(this);
+        }
+    }
+
+    /**
+     * Count an access to the layer data from outside the layer in the layer cache.
+     */
+    void accessed() {
+        PhotonLayerCache cache;
+        synchronized (this) {
+            cache = layerCache;
+        }
+        if (cache != null) {
+            cache.access(this);
+        }
+    }
+
+    synchronized void unLink() {
+        imageData = null;
+        packedLayerImage = null;
+        compressedImage = null;
+        // The stored data is freed when the layer store is closed
+        layerStore = null;
+        imageHandle = IPhotonLayerStore.NONE;
+        packedHandle = IPhotonLayerStore.NONE;
+        if (islandRows != null) {
+            islandRows.clear();
+        }
+        source = null;
+        layerCache = null;
+    }
+}
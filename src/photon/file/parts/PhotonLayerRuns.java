@@ -0,0 +1,493 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A layer as sorted runs of pixels per row, with the pixel type of each run.
+ * <p/>
+ * The runs are decoded straight from the photon file image data, and a layer is calculated by merging its runs with
+ * the runs of the previous layer, so the work depends on the number of runs and not on the resolution. The arrays are
+ * kept and reused when the next layer is decoded.
+ * <p/>
+ * The runs of a packed layer image are used for drawing, without allocating anything per run.
+ */
+public class PhotonLayerRuns {
+    private int width;
+    private int height;
+
+    // The runs of row y are from rowStart[y] to rowStart[y + 1], each from start (inclusive) to end (exclusive)
+    private int[] rowStart;
+    private int[] start;
+    private int[] end;
+    private byte[] type;
+    private int count;
+    private int lastRow;
+
+    // The number of rows the image data spans, as counted by PhotonFileLayer.unpackImage
+    private int rows;
+
+    // The bounding box of the runs
+    private int firstRow;
+    private int lastPixelRow;
+    private int firstColumn;
+    private int lastColumn;
+
+    private int[] parent;
+    private boolean[] touching;
+    private int[] size;
+    // The size of each island after connect, in the order the islands are found from the top left
+    private int[] islandSizes = new int[0];
+
+    public PhotonLayerRuns(int width, int height) {
+        this.width = width;
+        this.height = height;
+        rowStart = new int[height + 1];
+        int capacity = Integer.max(16, height * 2);
+        start = new int[capacity];
+        end = new int[capacity];
+        type = new byte[capacity];
+    }
+
+    void clear() {
+        count = 0;
+        lastRow = 0;
+        rows = 1;
+        rowStart[0] = 0;
+        firstRow = height;
+        lastPixelRow = -1;
+        firstColumn = width;
+        lastColumn = -1;
+        islandSizes = new int[0];
+    }
+
+    private void finish() {
+        for (int y = lastRow + 1; y <= height; y++) {
+            rowStart[y] = count;
+        }
+        lastRow = height;
+    }
+
+    /**
+     * Add a run, the runs must be added row by row from left to right.
+     */
+    void add(int y, int runStart, int runEnd, byte runType) {
+        runEnd = Integer.min(runEnd, width);
+        if (y >= height || runStart >= runEnd) {
+            return;
+        }
+        while (lastRow < y) {
+            lastRow++;
+            rowStart[lastRow] = count;
+        }
+        firstRow = Integer.min(firstRow, y);
+        lastPixelRow = y;
+        firstColumn = Integer.min(firstColumn, runStart);
+        lastColumn = Integer.max(lastColumn, runEnd - 1);
+        if (count > rowStart[y] && end[count - 1] == runStart && type[count - 1] == runType) {
+            end[count - 1] = runEnd;
+            return;
+        }
+        if (count == start.length) {
+            int capacity = count * 2;
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+            type = Arrays.copyOf(type, capacity);
+        }
+        start[count] = runStart;
+        end[count] = runEnd;
+        type[count] = runType;
+        count++;
+    }
+
+    /**
+     * Decode the photon file image data, all lit pixels are SUPPORTED. The rows are split the same way as
+     * PhotonFileLayer.unpackImage does.
+     *
+     * @return The number of lit pixels
+     */
+    public long decode(ByteBuffer imageData) {
+        clear();
+        long pixels = 0;
+        int resolutionX = width - 1;
+        int y = 0;
+        int x = 0;
+        for (int i = 0; i < imageData.limit(); i++) {
+            byte rle = imageData.get(i);
+            int length = rle & 0x7F;
+            boolean color = (rle & 0x80) == 0x80;
+            if (color) {
+                pixels += length;
+            }
+            int endPosition = x + (length - 1);
+            int lineEnd = Integer.min(endPosition, resolutionX);
+            if (color) {
+                add(y, x, 1 + lineEnd, PhotonLayer.SUPPORTED);
+            }
+            if (endPosition > resolutionX) {
+                y++;
+                rows++;
+                lineEnd = endPosition - (resolutionX + 1);
+                if (color) {
+                    add(y, 0, 1 + lineEnd, PhotonLayer.SUPPORTED);
+                }
+            }
+            x = lineEnd + 1;
+            if (x > resolutionX) {
+                y++;
+                rows++;
+                x = 0;
+            }
+        }
+        finish();
+        return pixels;
+    }
+
+    /**
+     * Decode a packed layer image from PhotonLayer.packLayerImage, the OFF pixels are left out.
+     *
+     * @param packedLayerImage The packed layer image, or null when the layer is not calculated yet
+     */
+    public void unpackLayerImage(byte[] packedLayerImage) {
+        clear();
+        if (packedLayerImage != null) {
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < packedLayerImage.length; i++) {
+                byte rle = packedLayerImage[i];
+                byte runType = (byte) ((rle & 0x60) >> 5);
+                int length = rle & 0x1F;
+                if ((rle & 0x80) == 0x80) {
+                    i++;
+                    length = (length << 8) | packedLayerImage[i] & 0x00ff;
+                }
+                if (runType != PhotonLayer.OFF) {
+                    add(y, x, x + length, runType);
+                }
+                x += length;
+                if (x >= width) {
+                    y++;
+                    x = 0;
+                }
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Set the runs of this layer to the runs of the current layer, SUPPORTED where the previous layer has pixels and
+     * ISLAND elsewhere, then connect the islands.
+     *
+     * @param previous The previous layer, or null for the first layer where all pixels are supported
+     */
+    public void calculate(PhotonLayerRuns current, PhotonLayerRuns previous) {
+        clear();
+        rows = current.rows;
+        for (int y = 0; y < height; y++) {
+            int j = previous != null ? previous.rowStart[y] : 0;
+            int jEnd = previous != null ? previous.rowStart[y + 1] : 0;
+            for (int i = current.rowStart[y]; i < current.rowStart[y + 1]; i++) {
+                int x = current.start[i];
+                int runEnd = current.end[i];
+                if (previous == null) {
+                    add(y, x, runEnd, PhotonLayer.SUPPORTED);
+                    continue;
+                }
+                while (j < jEnd && previous.end[j] <= x) {
+                    j++;
+                }
+                while (x < runEnd) {
+                    if (j < jEnd && previous.start[j] < runEnd) {
+                        if (previous.start[j] > x) {
+                            add(y, x, previous.start[j], PhotonLayer.ISLAND);
+                            x = previous.start[j];
+                        }
+                        int supportedEnd = Integer.min(runEnd, previous.end[j]);
+                        add(y, x, supportedEnd, PhotonLayer.SUPPORTED);
+                        x = supportedEnd;
+                        if (previous.end[j] <= runEnd) {
+                            j++;
+                        }
+                    } else {
+                        add(y, x, runEnd, PhotonLayer.ISLAND);
+                        x = runEnd;
+                    }
+                }
+            }
+        }
+        finish();
+        connect();
+    }
+
+    /**
+     * Connect the islands of the runs added to a cleared layer, used by PhotonLayer.reduce.
+     */
+    void reduce() {
+        finish();
+        connect();
+    }
+
+    /**
+     * Islands that are connected to a supported pixel, directly or through other island pixels, are CONNECTED.
+     * Uses union find on the island runs, so every island is found in a single pass.
+     */
+    private void connect() {
+        if (parent == null || parent.length < count) {
+            parent = new int[start.length];
+            touching = new boolean[start.length];
+            size = new int[start.length];
+        }
+        for (int i = 0; i < count; i++) {
+            parent[i] = i;
+            touching[i] = false;
+        }
+        for (int y = 0; y < height; y++) {
+            // Runs next to each other in the row
+            for (int i = rowStart[y] + 1; i < rowStart[y + 1]; i++) {
+                if (end[i - 1] == start[i]) {
+                    touch(i - 1, i);
+                }
+            }
+            // Runs overlapping the runs in the row above
+            if (y > 0) {
+                int j = rowStart[y - 1];
+                int jEnd = rowStart[y];
+                for (int i = rowStart[y]; i < rowStart[y + 1]; i++) {
+                    while (j < jEnd && end[j] <= start[i]) {
+                        j++;
+                    }
+                    for (int k = j; k < jEnd && start[k] < end[i]; k++) {
+                        touch(k, i);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (type[i] == PhotonLayer.ISLAND && touching[i]) {
+                touching[find(i)] = true;
+            }
+        }
+        int islands = 0;
+        for (int i = 0; i < count; i++) {
+            size[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            if (type[i] == PhotonLayer.ISLAND) {
+                int root = find(i);
+                if (touching[root]) {
+                    type[i] = PhotonLayer.CONNECTED;
+                } else {
+                    if (size[root] == 0) {
+                        islands++;
+                    }
+                    size[root] += end[i] - start[i];
+                }
+            }
+        }
+        islandSizes = new int[islands];
+        islands = 0;
+        for (int i = 0; i < count; i++) {
+            if (type[i] == PhotonLayer.ISLAND) {
+                int root = find(i);
+                if (size[root] > 0) {
+                    islandSizes[islands++] = size[root];
+                    size[root] = 0;
+                }
+            }
+        }
+    }
+
+    private void touch(int a, int b) {
+        if (type[a] == PhotonLayer.ISLAND && type[b] == PhotonLayer.ISLAND) {
+            int rootA = find(a);
+            int rootB = find(b);
+            if (rootA != rootB) {
+                parent[rootB] = rootA;
+            }
+        } else if (type[a] == PhotonLayer.ISLAND) {
+            touching[a] = true;
+        } else if (type[b] == PhotonLayer.ISLAND) {
+            touching[b] = true;
+        }
+    }
+
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Check the margin the same way as PhotonFileLayer.checkMagin does on the unpacked image.
+     */
+    public boolean extendsMargin(int margin) {
+        if (rows > margin) {
+            for (int y = 0; y < margin; y++) {
+                if (hasPixels(y)) {
+                    return true;
+                }
+            }
+            for (int y = rows - margin; y < rows; y++) {
+                if (hasPixels(y)) {
+                    return true;
+                }
+            }
+            int right = width - margin;
+            for (int y = margin; y < rows - margin && y < height; y++) {
+                int i = rowStart[y];
+                int rowEnd = rowStart[y + 1];
+                if (i < rowEnd && start[i] < margin) {
+                    return true;
+                }
+                while (i < rowEnd && end[i] <= right) {
+                    i++;
+                }
+                if (i < rowEnd && start[i] > right) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hasPixels(int y) {
+        return y >= 0 && y < height && rowStart[y] < rowStart[y + 1];
+    }
+
+    /**
+     * Get the islands as a bit set per row.
+     *
+     * @return The number of island pixels
+     */
+    public int setIslands(ArrayList<BitSet> islandRows) {
+        int islands = 0;
+        for (int y = 0; y < height; y++) {
+            BitSet bitSet = new BitSet();
+            for (int i = rowStart[y]; i < rowStart[y + 1]; i++) {
+                if (type[i] == PhotonLayer.ISLAND) {
+                    bitSet.set(start[i], end[i]);
+                    islands += end[i] - start[i];
+                }
+            }
+            islandRows.add(bitSet);
+        }
+        return islands;
+    }
+
+    /**
+     * Get the number of pixels in each island that is not connected, in the order the islands are found from the top
+     * left.
+     */
+    public int[] getIslandSizes() {
+        return islandSizes;
+    }
+
+    /**
+     * Pack the runs the same way as PhotonLayer.packLayerImage.
+     */
+    public byte[] packLayerImage() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int y = 0; y < height; y++) {
+            int x = 0;
+            for (int i = rowStart[y]; i < rowStart[y + 1]; i++) {
+                if (start[i] > x) {
+                    add(baos, PhotonLayer.OFF, start[i] - x);
+                }
+                add(baos, type[i], end[i] - start[i]);
+                x = end[i];
+            }
+            if (x < width) {
+                add(baos, PhotonLayer.OFF, width - x);
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * True when there are no runs, the bounding box is empty.
+     */
+    public boolean isEmpty() {
+        return lastPixelRow < 0;
+    }
+
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    public int getLastRow() {
+        return lastPixelRow;
+    }
+
+    public int getFirstColumn() {
+        return firstColumn;
+    }
+
+    public int getLastColumn() {
+        return lastColumn;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the index of the first run in row y, the runs of the row end at getRowStart(y + 1).
+     */
+    public int getRowStart(int y) {
+        return rowStart[y];
+    }
+
+    public int getStart(int run) {
+        return start[run];
+    }
+
+    public int getEnd(int run) {
+        return end[run];
+    }
+
+    public byte getType(int run) {
+        return type[run];
+    }
+
+    private static void add(ByteArrayOutputStream baos, byte current, int length) {
+        if (length < 32) {
+            baos.write((current << 5) | (length & 0x1f));
+        } else {
+            baos.write(0x80 | (current << 5) | (length >> 8 & 0x00FF));
+            baos.write(length & 0x00FF);
+        }
+    }
+}
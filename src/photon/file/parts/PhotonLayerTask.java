@@ -0,0 +1,118 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs an action for each layer in a range on a fork join pool, by splitting the range in one part for each thread.
+ * Actions that keep state from one layer to the next can be run for each part of the range instead.
+ * <p/>
+ * A pool is kept for each parallelism and used by all runs with that parallelism, also when they run at the same time.
+ * A run returns when all parts have stopped, and when a part fails the other parts stop at the next layer, or do not
+ * start.
+ */
+public class PhotonLayerTask {
+    // The smallest part worth running on its own thread
+    private static final int THRESHOLD = 16;
+
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    public interface ILayerAction {
+        void run(int layerNo) throws Exception;
+    }
+
+    public interface IRangeAction {
+        void run(int from, int to) throws Exception;
+    }
+
+    private AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private PhotonLayerTask() {
+    }
+
+    /**
+     * Run the action for the layers from 0 to count, with parallelism 1 or less the layers are run in order on the calling thread.
+     */
+    public static void run(int parallelism, int count, ILayerAction action) throws Exception {
+        PhotonLayerTask task = new PhotonLayerTask();
+        task.runParts(parallelism, 0, count, (from, to) -> {
+            for (int layerNo = from; layerNo < to && task.failure.get() == null; layerNo++) {
+                action.run(layerNo);
+            }
+        });
+    }
+
+    /**
+     * Run the action for the parts of the range from (inclusive) to (exclusive), each part in order on one thread. With
+     * parallelism 1 or less, or a short range, the action is run once for the whole range on the calling thread.
+     */
+    public static void runRanges(int parallelism, int from, int to, IRangeAction action) throws Exception {
+        new PhotonLayerTask().runParts(parallelism, from, to, action);
+    }
+
+    private void runParts(int parallelism, int from, int to, IRangeAction action) throws Exception {
+        int count = to - from;
+        int parts = Integer.min(parallelism, (count + THRESHOLD - 1) / THRESHOLD);
+        if (parts <= 1) {
+            action.run(from, to);
+            return;
+        }
+        // The worker threads of a pool stop when they are idle, so the pools are never shut down
+        ForkJoinPool pool = pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(parts);
+        try {
+            for (int part = 0; part < parts; part++) {
+                int partFrom = from + (int) ((long) count * part / parts);
+                int partTo = from + (int) ((long) count * (part + 1) / parts);
+                tasks.add(pool.submit(() -> {
+                    if (failure.get() == null) {
+                        try {
+                            action.run(partFrom, partTo);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+        } finally {
+            // Also when a part could not be submitted, the parts that were are waited for
+            for (ForkJoinTask<?> task : tasks) {
+                task.quietlyJoin();
+            }
+        }
+        Throwable e = failure.get();
+        if (e instanceof Exception) {
+            throw (Exception) e;
+        } else if (e != null) {
+            throw (Error) e;
+        }
+    }
+}
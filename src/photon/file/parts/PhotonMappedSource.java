@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file source backed by read only memory mappings, reads are views into the mapping.
+ * <p/>
+ * A single mapping is limited to 2 GB, so the file is mapped in segments when they are first used. Each segment overlaps
+ * the next, so data starting in a segment can be read from it, unless it is larger than the overlap.
+ */
+public class PhotonMappedSource implements IPhotonFileSource {
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long SEGMENT_OVERLAP = 1L << 26;
+
+    private FileChannel channel;
+    private long size;
+    private MappedByteBuffer[] segments;
+
+    public PhotonMappedSource(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer read(long address, int length) throws IOException {
+        int segmentNo = (int) (address / SEGMENT_SIZE);
+        long offset = address - (segmentNo * SEGMENT_SIZE);
+        ByteBuffer segment = getSegment(segmentNo);
+        if (offset + length <= segment.limit()) {
+            return PhotonBufferSource.slice(segment, (int) offset, length);
+        }
+        if (address + length > size) {
+            throw new IOException("Could not read all bytes of the file");
+        }
+        // Larger than the overlap, read the data from the file instead
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, address + buffer.position()) < 0) {
+                throw new IOException("Could not read all bytes of the file");
+            }
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void transferTo(long address, int length, WritableByteChannel target) throws IOException {
+        PhotonChannelSource.transferTo(channel, address, length, target);
+    }
+
+    private synchronized ByteBuffer getSegment(int segmentNo) throws IOException {
+        if (segmentNo >= segments.length) {
+            throw new IOException("Could not read all bytes of the file");
+        }
+        if (segments[segmentNo] == null) {
+            long start = segmentNo * SEGMENT_SIZE;
+            segments[segmentNo] = channel.map(FileChannel.MapMode.READ_ONLY, start, Long.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - start));
+        }
+        return segments[segmentNo];
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mappings are released when they are no longer referenced
+        segments = new MappedByteBuffer[0];
+        channel.close();
+    }
+}
@@ -40,7 +40,7 @@ public class PhotonMatix {
     }
 
 
-    public int set(int x, int y, byte[][] iArray, int width, int height) {
+    public int set(int x, int y, PhotonLayer layer, int width, int height) {
         int blanks = 0;
         int x0 = x - 2;
         int y0 = y - 2;
@@ -49,7 +49,7 @@ public class PhotonMatix {
                 int y2 = y0 + yi;
                 int x2 = x0 + xi;
                 if (y2 >= 0 && y2 < height && x2 >= 0 && x2 < width) {
-                    switch (iArray[y2][x2]) {
+                    switch (layer.get(x2, y2)) {
                         case PhotonLayer.SUPPORTED:
                         case PhotonLayer.CONNECTED:
                             calcMatrix[yi][xi] = 16;
@@ -28,40 +28,95 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
  * by bn on 06/07/2018.
+ * <p/>
+ * Values are encoded little endian into a large buffer, which is written to the channel when full. Large blocks of data
+ * are written together with the buffer in a single gather write.
  */
 public class PhotonOutputStream extends OutputStream implements DataOutput {
-    private OutputStream outputStream;
-    private DataOutputStream dataOutputStream;
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private WritableByteChannel channel;
+    private ByteBuffer buffer;
 
 
     public PhotonOutputStream(OutputStream outputStream) {
-        this.outputStream = outputStream;
-        dataOutputStream = new DataOutputStream(outputStream);
+        // The stream channel copies through a heap array, so a direct buffer would only add a copy
+        this.channel = Channels.newChannel(outputStream);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public PhotonOutputStream(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer room(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+        return buffer;
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        outputStream.write(b, off, len);
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    public void write(ByteBuffer data) throws IOException {
+        ByteBuffer source = data.duplicate();
+        if (source.remaining() <= buffer.remaining()) {
+            buffer.put(source);
+        } else if (source.remaining() < buffer.capacity() / 2) {
+            flush();
+            buffer.put(source);
+        } else if (channel instanceof GatheringByteChannel) {
+            buffer.flip();
+            ByteBuffer[] buffers = new ByteBuffer[]{buffer, source};
+            while (source.hasRemaining()) {
+                ((GatheringByteChannel) channel).write(buffers);
+            }
+            buffer.clear();
+        } else {
+            flush();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+
+    /**
+     * Write data from a source file, the data is transferred from the source channel when it has one.
+     */
+    public void write(IPhotonFileSource source, long address, int length) throws IOException {
+        flush();
+        source.transferTo(address, length, channel);
     }
 
     @Override
     public void writeBoolean(boolean v) throws IOException {
-        dataOutputStream.writeBoolean(v);
+        room(1).put((byte) (v ? 1 : 0));
     }
 
     @Override
     public void writeByte(int v) throws IOException {
-        dataOutputStream.writeByte(v);
+        room(1).put((byte) v);
     }
 
     @Deprecated
     @Override
     public void writeBytes(String s) throws IOException {
-        dataOutputStream.writeBytes(s);
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
     }
 
     @Override
@@ -78,12 +133,12 @@ public class PhotonOutputStream extends OutputStream implements DataOutput {
 
     @Override
     public void writeDouble(double v) throws IOException {
-        writeLong(Double.doubleToLongBits(v));
+        room(8).putDouble(v);
     }
 
     @Override
     public void writeFloat(float v) throws IOException {
-        writeInt(Float.floatToIntBits(v));
+        room(4).putFloat(v);
     }
 
     @Override
@@ -93,41 +148,37 @@ public class PhotonOutputStream extends OutputStream implements DataOutput {
 
     @Override
     public void writeInt(int v) throws IOException {
-        outputStream.write(0xFF & v);
-        outputStream.write(0xFF & (v >> 8));
-        outputStream.write(0xFF & (v >> 16));
-        outputStream.write(0xFF & (v >> 24));
+        room(4).putInt(v);
     }
 
     @Override
     public void writeLong(long v) throws IOException {
-        byte[] bytes = longToBytes(Long.reverseBytes(v));
-        write(bytes, 0, bytes.length);
-    }
-
-    private byte[] longToBytes(long l) {
-        byte[] result = new byte[8];
-        for (int i = 7; i >= 0; i--) {
-            result[i] = (byte)(l & 0xFF);
-            l >>= 8;
-        }
-        return result;
+        room(8).putLong(v);
     }
 
     @Override
     public void writeShort(int v) throws IOException {
-        outputStream.write(0xFF & v);
-        outputStream.write(0xFF & (v >> 8));
+        room(2).putShort((short) v);
     }
 
     @Override
     public void writeUTF(String str) throws IOException {
-        dataOutputStream.writeUTF(str);
+        new DataOutputStream(this).writeUTF(str);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
     }
 
     @Override
     public void close() throws IOException {
-        outputStream.close();
+        flush();
+        channel.close();
     }
 
 
@@ -0,0 +1,67 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the steps of a phase, passes them on to the progress at most every 100 ms and checks for cancellation on each step.
+ * Steps may be counted from several threads at once.
+ */
+public class PhotonProgressTracker {
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private IPhotonProgress progress;
+    private String phase;
+    private int total;
+    private AtomicInteger current = new AtomicInteger();
+    private AtomicLong nextReport;
+
+    public PhotonProgressTracker(IPhotonProgress progress, String phase, int total) {
+        this.progress = progress;
+        this.phase = phase;
+        this.total = total;
+        this.nextReport = new AtomicLong(System.nanoTime());
+    }
+
+    public void step() {
+        checkCancelled(progress);
+        int step = current.getAndIncrement();
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + INTERVAL)) {
+            progress.showProgress(phase, step, total);
+        }
+    }
+
+    public static void checkCancelled(IPhotonProgress progress) {
+        if (progress.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+}
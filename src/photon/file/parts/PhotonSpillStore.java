@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A layer store in a memory mapped temporary file, the operating system pages the data in and out as it is used.
+ * <p/>
+ * The file is deleted when the store is closed.
+ */
+public class PhotonSpillStore extends PhotonChunkStore {
+    private FileChannel channel;
+    private long fileSize;
+
+    /**
+     * @param directory The directory for the spill file, or null for the default temporary directory
+     */
+    public PhotonSpillStore(File directory) throws IOException {
+        Path file = directory != null ? Files.createTempFile(directory.toPath(), "photon", ".spill") : Files.createTempFile("photon", ".spill");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    @Override
+    protected ByteBuffer allocate(int chunkSize) throws IOException {
+        ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, fileSize, chunkSize);
+        fileSize += chunkSize;
+        return chunk;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        super.close();
+        // The mappings are released when they are no longer referenced
+        channel.close();
+    }
+}
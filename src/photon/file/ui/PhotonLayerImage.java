@@ -25,23 +25,27 @@
 package photon.file.ui;
 
 import photon.file.parts.PhotonFileLayer;
-import photon.file.parts.PhotonLine;
-import photon.file.parts.PhotonRow;
+import photon.file.parts.PhotonLayer;
+import photon.file.parts.PhotonLayerRuns;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.BitSet;
 
 /**
  * by bn on 02/07/2018.
  */
 public class PhotonLayerImage extends JPanel {
+    // The color of each pixel type, OFF pixels are not drawn
+    private static final Color[] COLORS = {Color.black, Color.decode("#008800"), Color.decode("#FF0000"), Color.decode("#FFFF00")};
+
     private int width;
     private int height;
     private float scale = 1f;
     private BufferedImage image;
+    // Reused for each layer drawn
+    private PhotonLayerRuns runs;
 
     public PhotonLayerImage(int width, int height) {
         this.width = width;
@@ -96,20 +100,13 @@ public class PhotonLayerImage extends JPanel {
 
                 }
 
-                ArrayList<PhotonRow> rows = layer.getRows();
-                if (rows != null) {
-                    int columnNumber = 0;
-                    for (PhotonRow row : rows) {
-                        int i = 0;
-                        for (PhotonLine line : row.lines) {
-                            int end = i + line.length;
-                            if (line.color != Color.black) {
-                                g.setColor(line.color);
-                                g.drawLine(columnNumber, i, columnNumber, end);
-                            }
-                            i = end;
+                runs = layer.getLayerRuns(runs);
+                for (int columnNumber = 0; columnNumber < runs.getHeight(); columnNumber++) {
+                    for (int run = runs.getRowStart(columnNumber); run < runs.getRowStart(columnNumber + 1); run++) {
+                        if (runs.getType(run) != PhotonLayer.OFF) {
+                            g.setColor(COLORS[runs.getType(run)]);
+                            g.drawLine(columnNumber, runs.getStart(run), columnNumber, runs.getEnd(run));
                         }
-                        columnNumber++;
                     }
                 }
 
@@ -37,23 +37,27 @@ public class PhotonPreviewImage extends JPanel {
     private BufferedImage image;
 
     public PhotonPreviewImage(int width, int height) {
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         setPreferredSize(new Dimension(width, height));
     }
 
     @Override
     protected void paintComponent(Graphics g) {
-        g.drawImage(image, 0,0, null);
+        g.setColor(Color.black);
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (image != null) {
+            g.drawImage(image, 0,0, null);
+        }
     }
 
     public void reInit(int width, int height) {
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image = null;
         setPreferredSize(new Dimension(width, height));
     }
 
     public void drawImage(PhotonFilePreview preview) {
-
-        image.getRaster().setDataElements( 0, 0, preview.getResolutionX(), preview.getResolutionY(), preview.getImageData());
+        // Keep the decoded image, the preview can be unlinked while the panel is still shown
+        image = preview.getImage();
+        repaint();
     }
 
 }
@@ -0,0 +1,185 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file;
+
+import org.junit.Test;
+import photon.file.parts.DummyPhotonLoadProgress;
+import photon.file.parts.PhotonAaMatrix;
+import photon.file.parts.PhotonFileLayer;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a file is saved as it was read, and that calculating the layers in parallel, on pixels or on runs, gives
+ * the same layers, islands and saved file as calculating them one at a time on pixels, and as the original version.
+ */
+public class PhotonFileCalculateTest {
+    // The digest of the layers of the test file, as calculated before the layers were calculated in parallel or on runs
+    private static final String ORIGINAL_DIGEST = "15ac34e1690e059b9cd16b7135ad57de251c38ba420b7d76323424ea8a03af96";
+    // The digest of the AA layers filtered from the test file with 4 AA levels, and its layers, by the original version
+    private static final String ORIGINAL_AA_DIGEST = "8bbaa76bb4a9a78724ccf2f4c9b16b20e9fcb42df74fe48e3b112dca2efd2b0b";
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 120;
+    private static final int LAYERS = 40;
+    private static final int ANTI_ALIAS_LEVEL = 2;
+
+    @Test
+    public void savesTheFileAsItWasRead() throws Exception {
+        byte[] file = new PhotonTestFile(2, ANTI_ALIAS_LEVEL, WIDTH, HEIGHT, LAYERS, 25).toBytes();
+        assertArrayEquals(file, read(file, 1, false).saveFile());
+        assertArrayEquals(file, read(file, 4, true).saveFile());
+    }
+
+    @Test
+    public void calculatesTheSameLayersInParallel() throws Exception {
+        byte[] file = new PhotonTestFile(2, ANTI_ALIAS_LEVEL, WIDTH, HEIGHT, LAYERS, 25).toBytes();
+        PhotonFile expected = calculate(file, 1, false);
+        assertTrue("The generated file has islands", !expected.getIslandLayers().isEmpty());
+        assertTrue("The generated file extends the margin", !expected.getMarginLayers().isEmpty());
+        byte[] expectedFile = expected.saveFile();
+
+        for (boolean runLengthEngine : new boolean[]{false, true}) {
+            for (int parallelism : new int[]{1, 3, 4}) {
+                String name = "parallelism " + parallelism + (runLengthEngine ? " on runs" : " on pixels");
+                PhotonFile actual = calculate(file, parallelism, runLengthEngine);
+                assertEquals(name + " island layers", expected.getIslandLayers(), actual.getIslandLayers());
+                assertEquals(name + " margin layers", expected.getMarginLayers(), actual.getMarginLayers());
+                for (int i = 0; i < LAYERS; i++) {
+                    assertSameLayer(name + " layer " + i, expected.getLayer(i), actual.getLayer(i));
+                }
+                assertArrayEquals(name + " saved file", expectedFile, actual.saveFile());
+            }
+        }
+    }
+
+    @Test
+    public void calculatesTheLayersOfTheOriginalVersion() throws Exception {
+        byte[] file = new PhotonTestFile(2, ANTI_ALIAS_LEVEL, WIDTH, HEIGHT, LAYERS, 25).toBytes();
+        assertEquals(ORIGINAL_DIGEST, digest(calculate(file, 1, false)));
+        assertEquals(ORIGINAL_DIGEST, digest(calculate(file, 4, true)));
+    }
+
+    @Test
+    public void calculatesFilesWithDifferentParallelismAtTheSameTime() throws Exception {
+        byte[] file = new PhotonTestFile(2, ANTI_ALIAS_LEVEL, WIDTH, HEIGHT, LAYERS, 25).toBytes();
+        List<Future<String>> digests = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int i = 0; i < 12; i++) {
+                int parallelism = 2 + i % 3;
+                digests.add(executor.submit(() -> digest(calculate(file, parallelism, parallelism % 2 == 0))));
+            }
+            for (Future<String> digest : digests) {
+                assertEquals(ORIGINAL_DIGEST, digest.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void calculatesTheAaLayersOfTheOriginalVersion() throws Exception {
+        byte[] file = new PhotonTestFile(2, 4, WIDTH, HEIGHT, LAYERS, 26).toBytes();
+        PhotonAaMatrix photonAaMatrix = new PhotonAaMatrix();
+        photonAaMatrix.clear();
+        for (int y = 1; y <= 5; y++) {
+            for (int x = 1; x <= 5; x++) {
+                photonAaMatrix.set(x, y, 9 - 2 * Math.abs(x - 3) - Math.abs(y - 3));
+            }
+        }
+        for (boolean runLengthEngine : new boolean[]{false, true}) {
+            PhotonFile photonFile = read(file, 4, runLengthEngine);
+            photonFile.calculateAaLayers(new DummyPhotonLoadProgress(), photonAaMatrix);
+            photonFile.calculate(new DummyPhotonLoadProgress());
+            assertEquals(ORIGINAL_AA_DIGEST, digest(photonFile));
+        }
+    }
+
+    @Test
+    public void calculatesASingleLayerAsTheWholeFile() throws Exception {
+        byte[] file = new PhotonTestFile(2, ANTI_ALIAS_LEVEL, WIDTH, HEIGHT, LAYERS, 25).toBytes();
+        PhotonFile expected = calculate(file, 1, false);
+        for (boolean runLengthEngine : new boolean[]{false, true}) {
+            PhotonFile actual = read(file, 4, runLengthEngine);
+            for (int i = 0; i < LAYERS; i++) {
+                actual.calculate(i);
+                assertSameLayer("layer " + i + (runLengthEngine ? " on runs" : " on pixels"), expected.getLayer(i), actual.getLayer(i));
+            }
+        }
+    }
+
+    private static void assertSameLayer(String name, PhotonFileLayer expected, PhotonFileLayer actual) throws Exception {
+        assertArrayEquals(name + " image", expected.getLayer().packLayerImage(), actual.getLayer().packLayerImage());
+        assertEquals(name + " island count", expected.getIsLandsCount(), actual.getIsLandsCount());
+        assertEquals(name + " island rows", expected.getIslandRows(), actual.getIslandRows());
+        assertArrayEquals(name + " island sizes", expected.getIslandSizes(), actual.getIslandSizes());
+        assertEquals(name + " pixels", expected.getPixels(), actual.getPixels());
+        for (int a = 0; a < ANTI_ALIAS_LEVEL - 1; a++) {
+            assertArrayEquals(name + " AA image " + a, expected.getAntiAlias(a).getLayer().packLayerImage(), actual.getAntiAlias(a).getLayer().packLayerImage());
+        }
+    }
+
+    private static PhotonFile read(byte[] file, int parallelism, boolean runLengthEngine) throws Exception {
+        PhotonFile photonFile = new PhotonFile();
+        photonFile.setMargin(5);
+        photonFile.setParallelism(parallelism);
+        photonFile.setRunLengthEngine(runLengthEngine);
+        return photonFile.readFile(file, new DummyPhotonLoadProgress());
+    }
+
+    private static PhotonFile calculate(byte[] file, int parallelism, boolean runLengthEngine) throws Exception {
+        PhotonFile photonFile = read(file, parallelism, runLengthEngine);
+        photonFile.calculate(new DummyPhotonLoadProgress());
+        return photonFile;
+    }
+
+    /**
+     * The digest of the layers, islands, island layers and margin layers.
+     */
+    private static String digest(PhotonFile photonFile) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < photonFile.getLayerCount(); i++) {
+            PhotonFileLayer layer = photonFile.getLayer(i);
+            digest.update(layer.getLayer().packLayerImage());
+            digest.update((layer.getIsLandsCount() + " " + (layer.getIsLandsCount() > 0 ? layer.getIslandRows() : "")).getBytes(StandardCharsets.UTF_8));
+            for (int a = 0; a < layer.getAntiAlias().size(); a++) {
+                digest.update(layer.getAntiAlias(a).getLayer().packLayerImage());
+            }
+        }
+        digest.update((photonFile.getIslandLayers() + " " + photonFile.getMarginLayers()).getBytes(StandardCharsets.UTF_8));
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+}
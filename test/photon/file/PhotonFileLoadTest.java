@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file;
+
+import org.junit.Test;
+import photon.file.parts.DummyPhotonLoadProgress;
+import photon.file.parts.IPhotonLayerStore;
+import photon.file.parts.PhotonDirectStore;
+import photon.file.parts.PhotonSpillStore;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the ways of loading a file give the same layers as reading it into memory.
+ */
+public class PhotonFileLoadTest {
+
+    @Test
+    public void readsMemoryMappedFiles() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 1);
+        File file = testFile.write(File.createTempFile("photon", ".cbddlp"));
+        try {
+            PhotonFile expected = PhotonTestFile.read(testFile.toBytes());
+            PhotonFile photonFile = new PhotonFile();
+            photonFile.setMemoryMapped(true);
+            photonFile.readFile(file, new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            assertArrayEquals(testFile.toBytes(), photonFile.saveFile());
+
+            expected.calculate(new DummyPhotonLoadProgress());
+            photonFile.calculate(new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            photonFile.unLink();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsLazyWithinTheCacheSize() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 2);
+        File file = testFile.write(File.createTempFile("photon", ".cbddlp"));
+        try {
+            PhotonFile expected = PhotonTestFile.read(testFile.toBytes());
+            PhotonFile photonFile = new PhotonFile();
+            photonFile.setLazyLoading(true);
+            photonFile.setLayerCacheSize(20000);
+            photonFile.readFile(file, new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            assertArrayEquals(testFile.toBytes(), photonFile.saveFile());
+
+            expected.calculate(new DummyPhotonLoadProgress());
+            photonFile.calculate(new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            // The layer in use is kept even when the cache is full
+            assertTrue("cache size " + photonFile.getLayerCache().getSize(), photonFile.getLayerCache().getSize() <= 20000 + 200 * 120);
+            photonFile.unLink();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsLayerDataPast2GB() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 3);
+        // A sparse file with the layer data from just before 3 GB, which is read from mapped segments of the file
+        File file = testFile.write(File.createTempFile("photon", ".cbddlp"), 0xC0000000L - 4000);
+        try {
+            PhotonFile expected = PhotonTestFile.read(testFile.toBytes());
+            PhotonFile photonFile = new PhotonFile();
+            photonFile.readFile(file, new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+
+            expected.calculate(new DummyPhotonLoadProgress());
+            photonFile.calculate(new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            photonFile.unLink();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void keepsLayersInALayerStore() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 4);
+        PhotonFile expected = PhotonTestFile.read(testFile.toBytes());
+        expected.calculate(new DummyPhotonLoadProgress());
+        for (IPhotonLayerStore layerStore : new IPhotonLayerStore[]{new PhotonDirectStore(), new PhotonSpillStore(null)}) {
+            PhotonFile photonFile = new PhotonFile();
+            photonFile.setLayerStore(layerStore);
+            photonFile.readFile(testFile.toBytes(), new DummyPhotonLoadProgress());
+            assertArrayEquals(testFile.toBytes(), photonFile.saveFile());
+            photonFile.calculate(new DummyPhotonLoadProgress());
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            assertArrayEquals(testFile.toBytes(), photonFile.saveFile());
+            photonFile.unLink();
+        }
+    }
+
+    @Test
+    public void compressesLayersInTheColdTier() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 5);
+        PhotonFile expected = PhotonTestFile.read(testFile.toBytes());
+        expected.calculate(new DummyPhotonLoadProgress());
+        PhotonFile photonFile = new PhotonFile();
+        photonFile.setLayerCacheSize(10000);
+        photonFile.setColdCacheSize(20000);
+        photonFile.readFile(testFile.toBytes(), new DummyPhotonLoadProgress());
+        photonFile.calculate(new DummyPhotonLoadProgress());
+        // Read the layers twice, the second time they come from the cold tier or are calculated again
+        PhotonTestFile.assertSameLayers(expected, photonFile);
+        PhotonTestFile.assertSameLayers(expected, photonFile);
+        assertTrue("cold size " + photonFile.getLayerCache().getColdSize(), photonFile.getLayerCache().getColdSize() <= 20000);
+        photonFile.unLink();
+    }
+}
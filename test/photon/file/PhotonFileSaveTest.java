@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file;
+
+import org.junit.Test;
+import photon.file.parts.DummyPhotonLoadProgress;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that saving over a file, in place or by replacing it, writes the same file as saving it anew.
+ */
+public class PhotonFileSaveTest {
+
+    @Test
+    public void patchesTheSettingsOfTheLoadedFile() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 11);
+        for (boolean deduplicateLayers : new boolean[]{false, true}) {
+            for (int mode = 0; mode < 3; mode++) {
+                File file = testFile.write(File.createTempFile("photon", ".cbddlp"));
+                try {
+                    PhotonFile photonFile = new PhotonFile();
+                    photonFile.setLazyLoading(mode == 1);
+                    photonFile.setMemoryMapped(mode == 2);
+                    photonFile.setDeduplicateLayers(deduplicateLayers);
+                    photonFile.readFile(file, new DummyPhotonLoadProgress());
+                    photonFile.getLayer(4).setLayerExposure(12.5f);
+                    byte[] expected = photonFile.saveFile();
+                    photonFile.saveFile(file);
+                    assertArrayEquals("mode " + mode + (deduplicateLayers ? " deduplicated" : ""), expected, Files.readAllBytes(file.toPath()));
+                    photonFile.unLink();
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void replacesTheFileWithoutTemporaryFiles() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 12);
+        Path directory = Files.createTempDirectory("photon");
+        File file = directory.resolve("test.cbddlp").toFile();
+        try {
+            PhotonFile photonFile = PhotonTestFile.read(testFile.toBytes());
+            photonFile.saveFile(file);
+            assertArrayEquals(testFile.toBytes(), Files.readAllBytes(file.toPath()));
+
+            // Replacing a file keeps its permissions
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r-----"));
+            photonFile.getLayer(4).setLayerExposure(12.5f);
+            photonFile.saveFile(file);
+            assertArrayEquals(photonFile.saveFile(), Files.readAllBytes(file.toPath()));
+            assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+            assertEquals(1, directory.toFile().list().length);
+        } finally {
+            file.delete();
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void deduplicatesLayerData() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 13);
+        PhotonFile photonFile = PhotonTestFile.read(testFile.toBytes());
+        photonFile.setDeduplicateLayers(true);
+        byte[] deduplicated = photonFile.saveFile();
+        assertTrue(deduplicated.length < testFile.toBytes().length);
+
+        PhotonFile reloaded = PhotonTestFile.read(deduplicated);
+        PhotonTestFile.assertSameLayers(photonFile, reloaded);
+        photonFile.calculate(new DummyPhotonLoadProgress());
+        reloaded.calculate(new DummyPhotonLoadProgress());
+        PhotonTestFile.assertSameLayers(photonFile, reloaded);
+    }
+
+    @Test
+    public void deduplicatesTheLoadedFile() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 2, 200, 120, 30, 14);
+        PhotonFile expected = PhotonTestFile.read(testFile.toBytes());
+        for (int mode = 0; mode < 3; mode++) {
+            File file = testFile.write(File.createTempFile("photon", ".cbddlp"));
+            try {
+                PhotonFile photonFile = new PhotonFile();
+                photonFile.setLazyLoading(mode == 1);
+                photonFile.setMemoryMapped(mode == 2);
+                photonFile.setDeduplicateLayers(true);
+                photonFile.readFile(file, new DummyPhotonLoadProgress());
+                photonFile.saveFile(file);
+                photonFile.unLink();
+                assertTrue("mode " + mode, file.length() < testFile.toBytes().length);
+
+                PhotonFile reloaded = new PhotonFile().readFile(file, new DummyPhotonLoadProgress());
+                PhotonTestFile.assertSameLayers(expected, reloaded);
+                reloaded.unLink();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
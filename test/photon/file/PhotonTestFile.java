@@ -0,0 +1,271 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file;
+
+import photon.file.parts.DummyPhotonLoadProgress;
+import photon.file.parts.PhotonFileLayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A photon file generated for the tests. Blocks are left out of some layers, so the layer above has islands, some
+ * layers have loose pixels and a column on the left edge, in the margin, and the other layers repeat.
+ */
+public class PhotonTestFile {
+    private final int version;
+    private final int antiAliasLevel;
+    private final int width;
+    private final int height;
+    private final int layers;
+    // The image data of each layer followed by that of its AA layers, in the order it is stored
+    private final List<byte[]> data = new ArrayList<>();
+    private final short[] previewPixels = new short[8];
+
+    public PhotonTestFile(int version, int antiAliasLevel, int width, int height, int layers, long seed) {
+        this.version = version;
+        this.antiAliasLevel = antiAliasLevel;
+        this.width = width;
+        this.height = height;
+        this.layers = layers;
+
+        Random random = new Random(seed);
+        int[][] blocks = new int[6][];
+        for (int b = 0; b < blocks.length; b++) {
+            blocks[b] = new int[]{5 + random.nextInt(width - 45), 5 + random.nextInt(height - 45), 5 + random.nextInt(26), 5 + random.nextInt(26)};
+        }
+        for (int i = 0; i < layers; i++) {
+            boolean[][] image = new boolean[height][width];
+            for (int[] block : blocks) {
+                if (i % 7 == 0 && (i / 7 + block[0]) % 5 == 0) {
+                    continue;
+                }
+                for (int y = block[1]; y < block[1] + block[3]; y++) {
+                    Arrays.fill(image[y], block[0], block[0] + block[2], true);
+                }
+            }
+            for (int p = i % 3 == 0 ? random.nextInt(5) : 0; p > 0; p--) {
+                int x = 4 + random.nextInt(width - 10);
+                int y = 4 + random.nextInt(height - 10);
+                image[y][x] = true;
+                image[y][x + 1] = true;
+            }
+            if (i % 13 == 0) {
+                for (int y = 4; y < height - 4; y++) {
+                    image[y][3] = true;
+                }
+            }
+            data.add(imageData(image, i % 2 == 0));
+            for (int a = 1; a < antiAliasLevel; a++) {
+                data.add(imageData(image, i % 2 != 0));
+            }
+        }
+        for (int p = 0; p < previewPixels.length; p++) {
+            previewPixels[p] = (short) (random.nextInt(0x10000) & ~0x20);
+        }
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer head = head(-1);
+        ByteBuffer file = ByteBuffer.allocate(head.limit() + dataLength());
+        file.put(head);
+        for (byte[] layer : data) {
+            file.put(layer);
+        }
+        return file.array();
+    }
+
+    /**
+     * Write the file with the layer data at the data address, the space between the layer definitions and the data is
+     * left empty.
+     */
+    public File write(File file, long dataAddress) throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.setLength(0);
+            output.write(head(dataAddress).array());
+            output.seek(dataAddress);
+            for (byte[] layer : data) {
+                output.write(layer);
+            }
+        }
+        return file;
+    }
+
+    public File write(File file) throws IOException {
+        return write(file, head(-1).limit());
+    }
+
+    private int dataLength() {
+        int length = 0;
+        for (byte[] layer : data) {
+            length += layer.length;
+        }
+        return length;
+    }
+
+    /**
+     * The header, previews, print parameters and layer definitions, with the layer data at the data address, or right
+     * after the definitions for -1.
+     */
+    private ByteBuffer head(long dataAddress) {
+        int headerSize = version > 1 ? 112 : 108;
+        int previewSize = 32 + 2 * 2 * 2;
+        int parametersSize = version > 1 ? 60 : 0;
+        int previewOne = headerSize;
+        int previewTwo = previewOne + previewSize;
+        int parameters = previewTwo + previewSize;
+        int definitions = parameters + parametersSize;
+        int headSize = definitions + 36 * layers * antiAliasLevel;
+        if (dataAddress < 0) {
+            dataAddress = headSize;
+        }
+
+        ByteBuffer file = ByteBuffer.allocate(headSize).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(0x12fd0019).putInt(version);
+        file.putFloat(68.04f).putFloat(120.96f).putFloat(150.0f);
+        file.putInt(0).putInt(0).putInt(0);
+        file.putFloat(0.05f).putFloat(8.0f).putFloat(60.0f).putFloat(1.0f).putInt(6);
+        file.putInt(width).putInt(height);
+        file.putInt(previewOne).putInt(definitions).putInt(layers).putInt(previewTwo);
+        file.putInt(1234).putInt(1).putInt(version > 1 ? parameters : 0).putInt(parametersSize).putInt(antiAliasLevel);
+        file.putShort((short) 255).putShort((short) 255);
+        file.putInt(0).putInt(0);
+        if (version > 1) {
+            file.putInt(0);
+        }
+
+        int pixel = 0;
+        for (int preview : new int[]{previewOne, previewTwo}) {
+            file.putInt(2).putInt(2).putInt(preview + 32).putInt(2 * 2 * 2).putInt(0).putInt(0).putInt(0).putInt(0);
+            for (int p = 0; p < 4; p++) {
+                file.putShort(previewPixels[pixel++]);
+            }
+        }
+
+        if (version > 1) {
+            file.putFloat(5).putFloat(300).putFloat(5).putFloat(300).putFloat(300);
+            file.putFloat(1.5f).putFloat(2.0f).putFloat(3.0f).putFloat(0).putFloat(0);
+            file.putInt(6).putInt(0).putInt(0).putInt(0).putInt(0);
+        }
+
+        // The definitions of the layers, then those of each AA level, with the data stored layer by layer
+        long[] addresses = new long[data.size()];
+        long address = dataAddress;
+        for (int d = 0; d < data.size(); d++) {
+            addresses[d] = address;
+            address += data.get(d).length;
+        }
+        for (int a = 0; a < antiAliasLevel; a++) {
+            for (int i = 0; i < layers; i++) {
+                int d = i * antiAliasLevel + a;
+                file.putFloat(i * 0.05f).putFloat(i < 6 ? 60.0f : 8.0f).putFloat(1.0f);
+                file.putInt((int) addresses[d]).putInt(data.get(d).length);
+                file.putInt(0).putInt(0).putInt(0).putInt(0);
+            }
+        }
+        file.flip();
+        return file;
+    }
+
+    /**
+     * Encode the image as photon image data, runs of at most 125 pixels, within each row or across the rows.
+     */
+    private static byte[] imageData(boolean[][] image, boolean acrossRows) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        boolean color = false;
+        int length = 0;
+        for (boolean[] row : image) {
+            for (boolean pixel : row) {
+                if (pixel != color || length == 125) {
+                    writeRun(data, color, length);
+                    color = pixel;
+                    length = 0;
+                }
+                length++;
+            }
+            if (!acrossRows) {
+                writeRun(data, color, length);
+                length = 0;
+            }
+        }
+        writeRun(data, color, length);
+        return data.toByteArray();
+    }
+
+    private static void writeRun(ByteArrayOutputStream data, boolean color, int length) {
+        if (length > 0) {
+            data.write((color ? 0x80 : 0x00) | length);
+        }
+    }
+
+    public static PhotonFile read(byte[] file) throws Exception {
+        return new PhotonFile().readFile(file, new DummyPhotonLoadProgress());
+    }
+
+    /**
+     * Check that the files have the same layers, with the same images, islands and AA layers.
+     */
+    public static void assertSameLayers(PhotonFile expected, PhotonFile actual) throws Exception {
+        assertEquals("layers", expected.getLayerCount(), actual.getLayerCount());
+        for (int i = 0; i < expected.getLayerCount(); i++) {
+            assertSameLayer("layer " + i, expected.getLayer(i), actual.getLayer(i));
+        }
+    }
+
+    public static void assertSameLayer(String name, PhotonFileLayer expected, PhotonFileLayer actual) throws Exception {
+        assertSameImage(name, expected, actual);
+        assertEquals(name + " island count", expected.getIsLandsCount(), actual.getIsLandsCount());
+        if (expected.getIsLandsCount() > 0) {
+            // A layer without islands may keep no rows at all, as they are all empty
+            assertEquals(name + " island rows", expected.getIslandRows(), actual.getIslandRows());
+        }
+        assertEquals(name + " AA layers", expected.getAntiAlias().size(), actual.getAntiAlias().size());
+        for (int a = 0; a < expected.getAntiAlias().size(); a++) {
+            assertSameImage(name + " AA " + a, expected.getAntiAlias(a), actual.getAntiAlias(a));
+        }
+    }
+
+    /**
+     * Compare the packed images of calculated layers, and the image data of the others as they have no packed image.
+     */
+    private static void assertSameImage(String name, PhotonFileLayer expected, PhotonFileLayer actual) throws Exception {
+        if (expected.getIslandRows() != null || actual.getIslandRows() != null) {
+            assertArrayEquals(name + " image", expected.getLayer().packLayerImage(), actual.getLayer().packLayerImage());
+        } else {
+            assertEquals(name + " image", expected.getUnknownRows(), actual.getUnknownRows());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the XXH64 hash against the published test vectors of the reference implementation, seed 0.
+ */
+public class PhotonHashTest {
+    private static final long PRIME32 = 2654435761L;
+    private static final long PRIME64 = 0x9E3779B185EBCA8DL;
+
+    @Test
+    public void hashesStrings() {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void hashesSanityBuffer() {
+        // The buffer of the sanity check of the reference implementation, covering the tail and the 32 byte stripes
+        byte[] buffer = new byte[222];
+        long byteGen = PRIME32;
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) (byteGen >>> 56);
+            byteGen *= PRIME64;
+        }
+        assertEquals(0xEF46DB3751D8E999L, PhotonHash.hash(ByteBuffer.wrap(buffer, 0, 0).slice()));
+        assertEquals(0xE934A84ADB052768L, PhotonHash.hash(ByteBuffer.wrap(buffer, 0, 1).slice()));
+        assertEquals(0x8282DCC4994E35C8L, PhotonHash.hash(ByteBuffer.wrap(buffer, 0, 14).slice()));
+        assertEquals(0xB641AE8CB691C174L, PhotonHash.hash(ByteBuffer.wrap(buffer)));
+    }
+
+    @Test
+    public void hashesDirectBuffersFromTheStart() {
+        byte[] data = "Nobody inspects the spammish repetition".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        // The position is ignored, the bytes up to the limit are hashed
+        assertEquals(0xFBCEA83C8A378BF1L, PhotonHash.hash(direct));
+    }
+
+    private static long hash(String text) {
+        return PhotonHash.hash(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
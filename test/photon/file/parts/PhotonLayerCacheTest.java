@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import org.junit.Test;
+import photon.file.PhotonFile;
+import photon.file.PhotonTestFile;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the layer cache keeps the layer data on the heap within its size, also for the layers modified by
+ * calculating the AA layers, which can not be read again from the file.
+ */
+public class PhotonLayerCacheTest {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 120;
+    private static final long CACHE_SIZE = 20000;
+
+    @Test
+    public void evictsModifiedLayersToTheLayerStore() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 4, WIDTH, HEIGHT, 30, 7);
+        PhotonFile expected = calculateAaLayers(PhotonTestFile.read(testFile.toBytes()));
+        File file = testFile.write(File.createTempFile("photon", ".cbddlp"));
+        try {
+            PhotonFile photonFile = new PhotonFile();
+            photonFile.setLazyLoading(true);
+            photonFile.setLayerCacheSize(CACHE_SIZE);
+            photonFile.setLayerStore(new PhotonSpillStore(null));
+            calculateAaLayers(photonFile.readFile(file, new DummyPhotonLoadProgress()));
+            // The layer in use is kept even when the cache is full
+            assertTrue("heap size " + getHeapSize(photonFile), getHeapSize(photonFile) <= CACHE_SIZE + WIDTH * HEIGHT);
+
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            assertArrayEquals(expected.saveFile(), photonFile.saveFile());
+            photonFile.unLink();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void keepsModifiedLayersDeflated() throws Exception {
+        PhotonTestFile testFile = new PhotonTestFile(2, 4, WIDTH, HEIGHT, 30, 8);
+        PhotonFile expected = calculateAaLayers(PhotonTestFile.read(testFile.toBytes()));
+        File file = testFile.write(File.createTempFile("photon", ".cbddlp"));
+        try {
+            PhotonFile photonFile = new PhotonFile();
+            photonFile.setLazyLoading(true);
+            photonFile.setLayerCacheSize(CACHE_SIZE);
+            calculateAaLayers(photonFile.readFile(file, new DummyPhotonLoadProgress()));
+            PhotonLayerCache layerCache = photonFile.getLayerCache();
+            assertTrue("cache size " + layerCache.getSize(), layerCache.getSize() <= CACHE_SIZE + WIDTH * HEIGHT);
+            assertTrue("kept size " + layerCache.getKeptSize(), layerCache.getKeptSize() > 0);
+            assertEquals(getHeapSize(photonFile), layerCache.getSize() + layerCache.getKeptSize());
+
+            PhotonTestFile.assertSameLayers(expected, photonFile);
+            assertArrayEquals(expected.saveFile(), photonFile.saveFile());
+            photonFile.unLink();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static PhotonFile calculateAaLayers(PhotonFile photonFile) throws Exception {
+        PhotonAaMatrix photonAaMatrix = new PhotonAaMatrix();
+        photonAaMatrix.clear();
+        for (int y = 2; y <= 4; y++) {
+            for (int x = 2; x <= 4; x++) {
+                photonAaMatrix.set(x, y, x == 3 && y == 3 ? 4 : 1);
+            }
+        }
+        photonFile.calculateAaLayers(new DummyPhotonLoadProgress(), photonAaMatrix);
+        return photonFile;
+    }
+
+    private static long getHeapSize(PhotonFile photonFile) {
+        long size = 0;
+        for (int i = 0; i < photonFile.getLayerCount(); i++) {
+            PhotonFileLayer layer = photonFile.getLayer(i);
+            size += layer.getHeapSize();
+            for (PhotonFileLayer aaLayer : layer.getAntiAlias()) {
+                size += aaLayer.getHeapSize();
+            }
+        }
+        return size;
+    }
+}
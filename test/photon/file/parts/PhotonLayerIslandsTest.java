@@ -0,0 +1,229 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Bonosoft
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package photon.file.parts;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the island labelling of PhotonLayer and PhotonLayerRuns against a breadth first search on generated layers.
+ * <p/>
+ * An island is a lit pixel that is not lit in the previous layer, and not connected to such a pixel through lit pixels.
+ */
+public class PhotonLayerIslandsTest {
+
+    @Test
+    public void findsIslandsInRandomLayers() {
+        Random random = new Random(24);
+        for (int i = 0; i < 400; i++) {
+            int width = 1 + random.nextInt(300);
+            int height = 1 + random.nextInt(40);
+            double density = random.nextDouble();
+            boolean[][] previous = randomImage(random, width, height, density * 0.5);
+            boolean[][] current = randomImage(random, width, height, density);
+            check("random " + i, previous, current);
+        }
+    }
+
+    @Test
+    public void findsIslandsOnTheEdges() {
+        int width = 260;
+        int height = 12;
+        boolean[][] previous = new boolean[height][width];
+        boolean[][] current = new boolean[height][width];
+        // Islands in the corners, along the first and last row and column, and a full row longer than a run
+        current[0][0] = true;
+        current[0][width - 1] = true;
+        current[height - 1][0] = true;
+        current[height - 1][width - 1] = true;
+        Arrays.fill(current[1], 2, width - 2, true);
+        for (int y = 3; y < height - 3; y++) {
+            current[y][0] = true;
+            current[y][width - 1] = true;
+        }
+        Arrays.fill(current[height - 2], 0, width, true);
+        // Supported on the right edge only, which holds the full row
+        previous[height - 2][width - 1] = true;
+        check("edges", previous, current);
+    }
+
+    @Test
+    public void findsAllPixelsAsIslandsWithoutSupport() {
+        Random random = new Random(7);
+        boolean[][] current = randomImage(random, 130, 20, 0.6);
+        check("unsupported", new boolean[20][130], current);
+    }
+
+    @Test
+    public void findsNoIslandsInAFullySupportedLayer() {
+        boolean[][] full = new boolean[15][200];
+        for (boolean[] row : full) {
+            Arrays.fill(row, true);
+        }
+        check("supported", full, full);
+    }
+
+    private static void check(String name, boolean[][] previous, boolean[][] current) {
+        int height = current.length;
+        int width = current[0].length;
+
+        List<BitSet> expectedRows = new ArrayList<>();
+        List<Integer> expectedSizes = new ArrayList<>();
+        int expectedCount = searchIslands(previous, current, expectedRows, expectedSizes);
+
+        PhotonLayer layer = new PhotonLayer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (current[y][x]) {
+                    if (previous[y][x]) {
+                        layer.supported(x, y);
+                    } else {
+                        layer.island(x, y);
+                    }
+                }
+            }
+        }
+        layer.reduce();
+        ArrayList<BitSet> layerRows = new ArrayList<>();
+        assertEquals(name + " layer count", expectedCount, layer.setIslands(layerRows));
+        assertEquals(name + " layer rows", expectedRows, layerRows);
+        assertEquals(name + " layer sizes", expectedSizes, sorted(layer.getIslandSizes()));
+
+        PhotonLayerRuns previousRuns = new PhotonLayerRuns(width, height);
+        previousRuns.decode(ByteBuffer.wrap(imageData(previous)));
+        PhotonLayerRuns currentRuns = new PhotonLayerRuns(width, height);
+        currentRuns.decode(ByteBuffer.wrap(imageData(current)));
+        PhotonLayerRuns calculatedRuns = new PhotonLayerRuns(width, height);
+        calculatedRuns.calculate(currentRuns, previousRuns);
+        ArrayList<BitSet> runRows = new ArrayList<>();
+        assertEquals(name + " runs count", expectedCount, calculatedRuns.setIslands(runRows));
+        assertEquals(name + " runs rows", expectedRows, runRows);
+        // Both find the islands in the same order
+        assertArrayEquals(name + " runs sizes", layer.getIslandSizes(), calculatedRuns.getIslandSizes());
+    }
+
+    /**
+     * The reference, a breadth first search from the supported pixels through the lit pixels.
+     */
+    private static int searchIslands(boolean[][] previous, boolean[][] current, List<BitSet> rows, List<Integer> sizes) {
+        int height = current.length;
+        int width = current[0].length;
+        boolean[][] connected = new boolean[height][width];
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (current[y][x] && previous[y][x]) {
+                    connected[y][x] = true;
+                    queue.add(new int[]{x, y});
+                }
+            }
+        }
+        fill(current, connected, queue);
+
+        int count = 0;
+        boolean[][] found = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            BitSet row = new BitSet();
+            for (int x = 0; x < width; x++) {
+                if (current[y][x] && !connected[y][x]) {
+                    row.set(x);
+                    count++;
+                    if (!found[y][x]) {
+                        found[y][x] = true;
+                        queue.add(new int[]{x, y});
+                        sizes.add(fill(current, found, queue) + 1);
+                    }
+                }
+            }
+            rows.add(row);
+        }
+        Collections.sort(sizes);
+        return count;
+    }
+
+    private static int fill(boolean[][] current, boolean[][] marked, ArrayDeque<int[]> queue) {
+        int[][] neighbours = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        int filled = 0;
+        while (!queue.isEmpty()) {
+            int[] pixel = queue.poll();
+            for (int[] neighbour : neighbours) {
+                int x = pixel[0] + neighbour[0];
+                int y = pixel[1] + neighbour[1];
+                if (y >= 0 && y < current.length && x >= 0 && x < current[y].length && current[y][x] && !marked[y][x]) {
+                    marked[y][x] = true;
+                    queue.add(new int[]{x, y});
+                    filled++;
+                }
+            }
+        }
+        return filled;
+    }
+
+    private static boolean[][] randomImage(Random random, int width, int height, double density) {
+        boolean[][] image = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image[y][x] = random.nextDouble() < density;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encode the image as photon image data, runs of at most 125 pixels within each row.
+     */
+    private static byte[] imageData(boolean[][] image) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (boolean[] row : image) {
+            int x = 0;
+            while (x < row.length) {
+                int end = x;
+                while (end < row.length && row[end] == row[x]) {
+                    end++;
+                }
+                for (int length = end - x; length > 0; length -= 125) {
+                    data.write((row[x] ? 0x80 : 0x00) | Integer.min(length, 125));
+                }
+                x = end;
+            }
+        }
+        return data.toByteArray();
+    }
+
+    private static List<Integer> sorted(int[] values) {
+        List<Integer> list = new ArrayList<>();
+        for (int value : values) {
+            list.add(value);
+        }
+        Collections.sort(list);
+        return list;
+    }
+}